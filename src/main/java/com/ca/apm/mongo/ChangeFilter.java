@@ -0,0 +1,159 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops metrics whose value hasn't changed since they were last sent.
+ *
+ * Every refreshCycles cycles a server's bundle goes out in full so the
+ * Enterprise Manager never sees a metric go stale.  Refreshes are spread
+ * over the cycles by server so they don't all land at once.
+ * PerIntervalCounters are always sent, since a missing interval is not the
+ * same as an unchanged one.
+ *
+ * The last values are recorded when a bundle is filtered, on the
+ * assumption that it will be delivered.  If it isn't (the delivery fails or
+ * the bundle is dropped), {@link #forget(String)} must be called so the
+ * server's next bundle goes out in full.
+ */
+public class ChangeFilter {
+
+    private final int refreshCycles;
+    private final ConcurrentMap<String, MemberState> members =
+        new ConcurrentHashMap<String, MemberState>();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public ChangeFilter(final int refreshCycles) {
+        this.refreshCycles = Math.max(refreshCycles, 1);
+    }
+
+    /**
+     * Removes the server's unchanged metrics from the bundle.
+     *
+     * @param member the server's "host:port"
+     * @param mfb    the server's metrics for this cycle
+     * @return the number of metrics removed
+     */
+    public int filter(final String member, final MetricFeedBundle mfb) {
+        MemberState ms = members.get(member);
+        if (ms == null) {
+            members.putIfAbsent(member, new MemberState(
+                (member.hashCode() & Integer.MAX_VALUE) % refreshCycles));
+            ms = members.get(member);
+        }
+
+        final int n = mfb.size();
+        int dropped = 0;
+        synchronized (ms) {
+            final boolean refresh = ms.cycle++ % refreshCycles == 0;
+            ms.keep.clear();
+            for (int i = 0; i < n; i++) {
+                final int id = mfb.getPathId(i);
+                final long v = mfb.isText(i)
+                    ? fingerprint(mfb.getString(i)) : mfb.getLong(i);
+                final boolean changed = !ms.last.containsKey(id)
+                    || ms.last.get(id, 0) != v;
+                ms.last.put(id, v);
+                if (refresh || changed || mfb.getType(i)
+                        == MetricFeedBundle.PER_INTERVAL_COUNTER) {
+                    ms.keep.set(i);
+                } else {
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                mfb.retain(ms.keep);
+            }
+        }
+        suppressed.addAndGet(dropped);
+        return dropped;
+    }
+
+    /**
+     * Returns the number of metrics suppressed since the last call.
+     */
+    public long takeSuppressed() {
+        return suppressed.getAndSet(0);
+    }
+
+    /**
+     * Forgets the values last sent for a server, because a bundle of it
+     * was not delivered.  Its next bundle is sent in full.
+     */
+    public void forget(final String member) {
+        final MemberState ms = members.get(member);
+        if (ms != null) {
+            synchronized (ms) {
+                ms.last.clear();
+            }
+        }
+    }
+
+    /**
+     * Forgets the values last sent for every server.
+     */
+    public void forgetAll() {
+        for (String member : members.keySet()) {
+            forget(member);
+        }
+    }
+
+    /**
+     * Forgets the state of every server not in the given set.
+     */
+    public void retain(final Collection<String> keep) {
+        final Set<String> k = new HashSet<String>(keep);
+        members.keySet().retainAll(k);
+    }
+
+    // 64-bit FNV-1a, so text changes are very unlikely to go unnoticed
+    private static long fingerprint(final String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static class MemberState {
+        private final IntLongMap last = new IntLongMap(1024);
+        private final BitSet keep = new BitSet();
+        private int cycle;
+
+        MemberState(final int firstCycle) {
+            // the first cycle always sends everything, as nothing has
+            // been seen yet
+            this.cycle = firstCycle;
+        }
+    }
+}
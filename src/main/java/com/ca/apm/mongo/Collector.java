@@ -23,20 +23,26 @@
 
 package com.ca.apm.mongo;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
@@ -45,15 +51,14 @@ import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
-import javax.net.ssl.SSLSocketFactory;
-
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoCredential;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoTimeoutException;
 import com.mongodb.ServerAddress;
 
 import com.ca.apm.mongo.Topology.ClusterType;
@@ -81,6 +86,64 @@ public class Collector implements Runnable {
         "javax.net.ssl.trustStorePassword";
     public static final String APM_HOST_PROP = "apm.apihost";
     public static final String APM_PORT_PROP = "apm.apiport";
+    public static final String CLIENT_IDLE_PROP = "mongo.client.idle.seconds";
+    public static final String COLLECTION_THREADS_PROP =
+        "mongo.collection.threads";
+    public static final String MEMBER_TIMEOUT_PROP =
+        "mongo.member.timeout.seconds";
+    public static final String VIRTUAL_THREADS_PROP =
+        "mongo.collection.virtualthreads";
+    public static final String MAX_CONCURRENT_PROP =
+        "mongo.collection.max.concurrent";
+    public static final String BATCH_DELIVERY_PROP = "apm.batch.delivery";
+    public static final String BATCH_MAX_METRICS_PROP =
+        "apm.batch.max.metrics";
+    public static final String DELTA_ENABLED_PROP = "mongo.delta.enabled";
+    public static final String DELTA_COUNTERS_PROP = "mongo.delta.counters";
+    public static final String DEDUP_ENABLED_PROP = "apm.dedup.enabled";
+    public static final String DEDUP_REFRESH_PROP = "apm.dedup.refresh.cycles";
+    public static final String STATUS_INCLUDE_PROP =
+        "mongo.serverstatus.include";
+    public static final String STATUS_EXCLUDE_PROP =
+        "mongo.serverstatus.exclude";
+    public static final String METRICS_INCLUDE_PROP = "mongo.metrics.include";
+    public static final String METRICS_EXCLUDE_PROP = "mongo.metrics.exclude";
+    public static final String RAW_FLATTEN_PROP = "mongo.flatten.raw";
+    public static final String TOPOLOGY_REFRESH_PROP =
+        "mongo.topology.refresh.seconds";
+    public static final String DISCOVERY_THREADS_PROP =
+        "mongo.discovery.threads";
+    public static final String TOPOLOGY_SNAPSHOT_PROP =
+        "mongo.topology.snapshot.file";
+    public static final String TOPOLOGY_WATCH_PROP = "mongo.topology.watch";
+    public static final String TOPOLOGY_HEARTBEAT_PROP =
+        "mongo.topology.heartbeat.seconds";
+    public static final String SAMPLE_SECONDS_PROP = "mongo.sample.seconds";
+    public static final String SAMPLE_PATHS_PROP = "mongo.sample.paths";
+    public static final String SAMPLE_THREADS_PROP = "mongo.sample.threads";
+    public static final String SOURCES_PROP = "mongo.sources";
+    public static final String SOURCES_THREADS_PROP = "mongo.sources.threads";
+    public static final String SOURCES_MEMBER_MAX_CONCURRENT_PROP =
+        "mongo.sources.member.max.concurrent";
+    public static final String SOURCE_PROP_PREFIX = "mongo.source.";
+    public static final String APM_TIMEOUT_PROP = "apm.timeout.seconds";
+    public static final String APM_GZIP_PROP = "apm.gzip";
+    public static final String DELIVERY_MAX_BYTES_PROP =
+        "apm.delivery.max.bytes";
+    public static final String DELIVERY_RETRIES_PROP = "apm.delivery.retries";
+    public static final String DELIVERY_THREADS_PROP =
+        "apm.delivery.chunk.threads";
+    public static final String SINK_PROP = "apm.sink";
+    public static final String SINK_TCP_PORT_PROP = "apm.sink.tcp.port";
+    public static final String SINK_FILE_PROP = "apm.sink.file";
+    public static final String SINK_FILE_MAX_MB_PROP = "apm.sink.file.max.mb";
+    public static final String SINK_FILE_COUNT_PROP = "apm.sink.file.count";
+    public static final String DELIVERY_QUEUE_PROP = "apm.delivery.queue.size";
+    public static final String DELIVERY_DROP_PROP = "apm.delivery.drop.policy";
+    public static final String SPOOL_DIR_PROP = "apm.spool.dir";
+    public static final String SPOOL_MAX_MB_PROP = "apm.spool.max.mb";
+    public static final String SPOOL_REPLAY_RATE_PROP =
+        "apm.spool.replay.per.second";
 
     public static final String AUTH_NONE     = "none";
     public static final String AUTH_CR       = "basic";
@@ -88,6 +151,29 @@ public class Collector implements Runnable {
     public static final String AUTH_KERBEROS = "kerberos";
     public static final String AUTH_SASL     = "plainsasl";
 
+    /** Paths sampled by default when mongo.sample.seconds is set. */
+    public static final String DEFAULT_SAMPLE_PATHS =
+        "globalLock|currentQueue,globalLock|activeClients,connections|current,"
+        + "wiredTiger|cache|tracked dirty bytes in the cache,"
+        + "wiredTiger|cache|bytes currently in the cache";
+
+    // serverStatus sections left out of samples unless a sampled path
+    // needs them
+    private static final String[] SAMPLE_EXCLUDED_SECTIONS = {
+        "asserts", "backgroundFlushing", "connections", "cursors", "dur",
+        "extra_info", "globalLock", "locks", "logicalSessionRecordCache",
+        "metrics", "network", "opLatencies", "opcounters", "opcountersRepl",
+        "repl", "security", "storageEngine", "tcmalloc", "transactions",
+        "wiredTiger"
+    };
+
+    // platform threads used for virtual-thread collection on JVMs without
+    // virtual threads when mongo.collection.max.concurrent is not set
+    private static final int DEFAULT_FALLBACK_THREADS = 16;
+
+    /** Metric path under which the collector reports on itself. */
+    public static final String SELF_METRIC_BASE = "MongoDB Collector";
+
     private static Logger logger;
 
     public static void main(final String[] args) {
@@ -141,8 +227,16 @@ public class Collector implements Runnable {
 
     public static void collect(final Properties p) {
         try {
-            Collector c = new Collector(p);
+            final Collector c = new Collector(p);
             if (c.collectionInterval > 0) {
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        c.shutdown();
+                    }
+                });
+                c.startTopologyRefresh();
+                c.startSampling();
+                c.startSources();
                 ScheduledExecutorService ses =
                     new ScheduledThreadPoolExecutor(1);
                 ses.scheduleAtFixedRate(c, 0,
@@ -155,7 +249,11 @@ public class Collector implements Runnable {
                     }
                 }
             } else {
-                c.run();
+                try {
+                    c.run();
+                } finally {
+                    c.shutdown();
+                }
             }
         } catch (Exception ex) {
             logger.log(Level.SEVERE, "Exception: ", ex);
@@ -164,16 +262,80 @@ public class Collector implements Runnable {
 
     private Properties props;
     private int collectionInterval;
+    private int memberTimeoutMillis;
+    private ExecutorService workers;
+    private Semaphore concurrencyLimit;
+    private boolean batchDelivery;
+    private int batchMaxMetrics;
     private boolean keepRunning;
     private URL apiUrl;
+    private int apiTimeoutMillis;
+    private MetricFeedClient feed;
+    private MetricSink sink;
+    private int maxPayloadBytes;
+    private int deliveryRetries;
+    private ExecutorService chunkSenders;
+    private DeliveryQueue delivery;
+    private DeliverySpool spool;
+    private ScheduledExecutorService spoolReplayer;
     private List<MongoCredential> mongoCreds = new ArrayList<MongoCredential>();
-    private Topology topology;
+    private MongoClientRegistry clients;
+    private final MetricPathRegistry paths = new MetricPathRegistry();
+    private CounterDeltaTracker deltas;
+    private ChangeFilter changes;
+    private SampleAggregator samples;
+    private MetricFlattener sampleFlattener;
+    private BasicDBObject sampleCmd;
+    private int sampleSecs;
+    private int sampleDeadlineMillis;
+    private ScheduledExecutorService sampler;
+    private ExecutorService samplePool;
+    // members whose collection is running, possibly from an earlier cycle
+    private final Set<String> collecting = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+    // members whose sample is running
+    private final Set<String> sampling = Collections.newSetFromMap(
+        new ConcurrentHashMap<String, Boolean>());
+    private SourceScheduler sources;
+    private MetricFlattener sourceFlattener;
+    private BasicDBObject serverStatusCmd;
+    private MetricFlattener flattener;
+    private boolean rawFlatten;
+    private volatile Topology topology;
+    private int topologyRefreshSecs;
+    private volatile ScheduledExecutorService topologyRefresher;
+    private volatile CommandCache discoveryCache;
+    private File snapshotFile;
+    private volatile TopologyWatcher watcher;
 
     public Collector(final Properties inProps) {
         props = inProps;
         processProperties();
+        // by default keep a member's client across a few missed cycles
+        // before treating the member as gone
+        final int idleSecs = getOptionalIntProp(CLIENT_IDLE_PROP,
+            Math.max(300, 3 * collectionInterval));
+        clients = new MongoClientRegistry(props, mongoCreds,
+            TimeUnit.SECONDS.toMillis(idleSecs), logger);
+        topologyRefreshSecs = getOptionalIntProp(TOPOLOGY_REFRESH_PROP, 0);
+        final String snapshot = getOptionalStringProp(TOPOLOGY_SNAPSHOT_PROP);
+        snapshotFile = isEmpty(snapshot) ? null : new File(snapshot.trim());
+        topology = loadSnapshot();
+        if (topology != null) {
+            // collect from the last known members right away
+            logger.log(Level.INFO, "Using the topology saved in {0}, "
+                + "rediscovering in the background", snapshotFile);
+            topologyScheduler().execute(new Runnable() {
+                public void run() {
+                    refreshTopology();
+                }
+            });
+            keepRunning = true;
+            return;
+        }
         try {
             topology = discoverTopology();
+            saveSnapshot(topology);
         } catch (Exception e) {
             logger.log(Level.WARNING,
                 "Exception discovering topology: ", e);
@@ -181,7 +343,8 @@ public class Collector implements Runnable {
                 // just assume standalone
                 final String host = getStringProp(DB_HOST_PROP);
                 final int port = getIntProp(DB_PORT_PROP);
-                topology = new StandaloneMongod(props, host, port, logger);
+                topology = new StandaloneMongod(
+                    props, host, port, logger, clients);
                 topology.discoverServers("Standalone");
             } catch (Exception e2) {
                 // for standalone server discovery, there's not really
@@ -193,27 +356,434 @@ public class Collector implements Runnable {
 
     public void run() {
         logger.log(Level.INFO, "harvesting metrics...");
-        for (String mongoSrv : topology.getDiscoveredServers()) {
-            MongoServer ms = null;
+        clients.evictIdle();
+        // in batch mode every member's metrics are gathered here and sent
+        // together at the end of the cycle
+        final MetricFeedBundle batch =
+            batchDelivery ? new MetricFeedBundle(paths) : null;
+        final MetricFeedBundle selfMetrics = new MetricFeedBundle(paths);
+        final Topology current = topology;
+        if (current == null) {
+            logger.log(Level.WARNING, "No topology discovered yet");
+            return;
+        }
+        final List<String> servers = current.getDiscoveredServers();
+        if (workers != null) {
+            runConcurrently(servers, batch, selfMetrics);
+        } else {
+            for (String mongoSrv : servers) {
+                try {
+                    collectMember(mongoSrv, batch);
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "Exception: ", e);
+                }
+            }
+        }
+        if (changes != null) {
+            selfMetrics.addMetric("IntCounter",
+                SELF_METRIC_BASE + ":Suppressed Metrics",
+                String.valueOf(changes.takeSuppressed()));
+        }
+        if (delivery != null) {
+            delivery.addSelfMetrics(selfMetrics,
+                SELF_METRIC_BASE + "|Delivery Queue");
+        }
+        if (spool != null) {
+            spool.addSelfMetrics(selfMetrics, SELF_METRIC_BASE + "|Spool");
+        }
+        deliverSelfMetrics(selfMetrics, batch);
+        if (batch != null) {
+            deliverBatch(batch);
+        }
+    }
+
+    private void deliverSelfMetrics(
+        final MetricFeedBundle selfMetrics,
+        final MetricFeedBundle batch
+    ) {
+        if (selfMetrics.size() == 0) {
+            return;
+        }
+        if (batch != null) {
+            synchronized (batch) {
+                batch.addAll(selfMetrics);
+            }
+            return;
+        }
+        try {
+            send(null, selfMetrics);
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Exception: ", e);
+        }
+    }
+
+    /**
+     * Hands a bundle to the delivery queue, or delivers it right away if
+     * there is none.
+     */
+    private void send(
+        final String member,
+        final MetricFeedBundle mfb
+    ) throws Exception {
+        if (delivery != null) {
+            delivery.offer(member, mfb);
+            return;
+        }
+        try {
+            deliver(mfb);
+        } catch (Exception e) {
+            undelivered(member);
+            throw e;
+        }
+    }
+
+    /**
+     * Makes the change filter send the values of a bundle that was not
+     * delivered again: the member's next bundle, or every member's for a
+     * lost batch, goes out in full.
+     */
+    private void undelivered(final String member) {
+        if (changes == null) {
+            return;
+        }
+        if (member != null) {
+            changes.forget(member);
+        } else if (batchDelivery) {
+            changes.forgetAll();
+        }
+    }
+
+    /**
+     * Delivers a bundle.  If a maximum payload size is set, a larger bundle
+     * is split into chunks that are sent concurrently, each retried on its
+     * own.
+     */
+    private void deliver(final MetricFeedBundle mfb) throws Exception {
+        if (maxPayloadBytes <= 0) {
+            deliverChunk(mfb);
+            return;
+        }
+        final List<MetricFeedBundle> chunks =
+            mfb.partitionBySize(maxPayloadBytes);
+        if (chunks.size() <= 1) {
+            deliverChunk(mfb);
+            return;
+        }
+        logger.log(Level.FINE, "Delivering {0} metrics in {1} chunks",
+            new Object[] {mfb.size(), chunks.size()});
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final MetricFeedBundle chunk : chunks) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    deliverChunk(chunk);
+                    return null;
+                }
+            });
+        }
+        Exception failure = null;
+        for (Future<Void> f : chunkSenders.invokeAll(tasks)) {
             try {
-                ms = new MongoServer(mongoSrv);
-                CommandResult mcr =
-                    getMongoData(ms.getHost(), ms.getPort());
-                if (isValidData(mcr)) {
-                    MetricFeedBundle mfb = makeMetrics(mcr);
-                    deliverMetrics(mfb);
+                f.get();
+            } catch (ExecutionException ee) {
+                logger.log(Level.SEVERE, "Exception: ", ee.getCause());
+                if (failure == null && ee.getCause() instanceof Exception) {
+                    failure = (Exception) ee.getCause();
                 }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Delivers one payload, retrying it if the agent can't be reached.
+     * If it still can't, the payload is spooled to disk, if there's a
+     * spool.  While the spool holds payloads, new ones are spooled behind
+     * them, since the agent keeps the last value it was sent.
+     */
+    private void deliverChunk(final MetricFeedBundle mfb) throws Exception {
+        if (spool != null && spool.appendIfPending(mfb)) {
+            return;
+        }
+        for (int attempt = 0; ; attempt++) {
+            try {
+                deliverMetrics(mfb);
+                return;
+            } catch (IOException e) {
+                if (attempt < deliveryRetries) {
+                    logger.log(Level.FINE,
+                        "Retrying metric delivery after: {0}", e);
+                    Thread.sleep(500L * (attempt + 1));
+                    continue;
+                }
+                if (spool == null) {
+                    throw e;
+                }
+                logger.log(Level.WARNING,
+                    "Can''t deliver metrics, spooling them: {0}", e);
+                spool.append(mfb);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Fetches and flattens the metrics of one member, then either delivers
+     * them or, if a batch is given, adds them to it.
+     */
+    private void collectMember(
+        final String mongoSrv,
+        final MetricFeedBundle batch
+    ) throws Exception {
+        final MongoServer ms = new MongoServer(mongoSrv);
+        final MetricFeedBundle mfb = fetchMetrics(ms);
+        if (mfb != null) {
+            if (deltas != null) {
+                deltas.process(mongoSrv,
+                    basePathId(ms.getHost(), ms.getPort()), mfb,
+                    System.currentTimeMillis());
+            }
+            // after the deltas, which would take the sample aggregates of
+            // a counter for counters too
+            if (samples != null) {
+                samples.drain(mongoSrv, mfb);
+            }
+            if (changes != null) {
+                changes.filter(mongoSrv, mfb);
+            }
+            if (batch == null) {
+                send(mongoSrv, mfb);
+            } else {
+                synchronized (batch) {
+                    batch.addAll(mfb);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs serverStatus on a member and flattens the reply, or returns
+     * null if the reply is not a successful one.
+     */
+    private MetricFeedBundle fetchMetrics(
+        final MongoServer ms
+    ) throws Exception {
+        if (!rawFlatten) {
+            final CommandResult mcr =
+                getMongoData(ms.getHost(), ms.getPort());
+            return isValidData(mcr) ? makeMetrics(mcr) : null;
+        }
+        // read the metrics straight out of the reply's BSON
+        final RawBsonDecoder.Document doc = clients.runRawDBCmd(
+            ms.getHost(), ms.getPort(), "admin", serverStatusCmd);
+        final ServerAddress sa = doc.getServerUsed();
+        final MetricFeedBundle mfb = new MetricFeedBundle(paths);
+        if (flattener.flattenRaw(MongoClientRegistry.key(ms.getHost(),
+                ms.getPort()), doc.getBsonBytes(), doc.getBsonOffset(),
+                basePathId(sa.getHost(), sa.getPort()), mfb)) {
+            return mfb;
+        }
+        return null;
+    }
+
+    /**
+     * Delivers a cycle's batch as one payload, or as several if it holds
+     * more than the configured maximum number of metrics.
+     */
+    private void deliverBatch(final MetricFeedBundle batch) {
+        final List<MetricFeedBundle> chunks;
+        // late members may still be adding to the batch
+        synchronized (batch) {
+            if (batch.size() == 0) {
+                return;
+            }
+            chunks = batch.partition(batchMaxMetrics);
+        }
+        for (MetricFeedBundle chunk : chunks) {
+            try {
+                send(null, chunk);
             } catch (Exception e) {
                 logger.log(Level.SEVERE, "Exception: ", e);
             }
         }
     }
 
+    /**
+     * Collects all members on the worker pool.  The cycle ends when every
+     * member is done or the collection interval has elapsed, whichever is
+     * first; members that haven't answered by then are reported as late
+     * rather than holding up the others.
+     *
+     * Cancelling a late member's task interrupts its thread, but that
+     * doesn't stop the driver's blocking socket IO: the call only ends when
+     * mongo.member.timeout.seconds expires (or never, without one), and its
+     * thread stays busy until then.  A member whose collection is still
+     * running from an earlier cycle is skipped and reported as late again,
+     * so hung members can't take up the whole pool.
+     */
+    private void runConcurrently(
+        final List<String> members,
+        final MetricFeedBundle batch,
+        final MetricFeedBundle selfMetrics
+    ) {
+        final long start = System.currentTimeMillis();
+        final List<String> servers = new ArrayList<String>();
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int late = 0;
+        for (final String mongoSrv : members) {
+            if (collecting.contains(mongoSrv)) {
+                late++;
+                logger.log(Level.WARNING,
+                    "Previous collection from {0} still running, skipping it",
+                    mongoSrv);
+                selfMetrics.addMetric("IntCounter", lateMetricPath(mongoSrv),
+                    "1");
+                continue;
+            }
+            servers.add(mongoSrv);
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    // marked here, so a task cancelled before it started
+                    // never leaves its member marked
+                    if (!collecting.add(mongoSrv)) {
+                        return null;
+                    }
+                    try {
+                        collectLimited(mongoSrv, batch);
+                    } finally {
+                        collecting.remove(mongoSrv);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        List<Future<Void>> results;
+        try {
+            if (collectionInterval > 0) {
+                results = workers.invokeAll(tasks,
+                    collectionInterval, TimeUnit.SECONDS);
+            } else {
+                results = workers.invokeAll(tasks);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            boolean isLate = false;
+            try {
+                results.get(i).get();
+            } catch (ExecutionException ee) {
+                if (isTimeout(ee.getCause())) {
+                    isLate = true;
+                } else {
+                    failed++;
+                }
+                logger.log(Level.SEVERE, "Exception: ", ee.getCause());
+            } catch (Exception e) {
+                // cancelled at the end of the cycle
+                isLate = true;
+            }
+            if (isLate) {
+                late++;
+                logger.log(Level.WARNING, "Late collecting from {0}",
+                    servers.get(i));
+            }
+            selfMetrics.addMetric("IntCounter",
+                lateMetricPath(servers.get(i)), isLate ? "1" : "0");
+        }
+        selfMetrics.addMetric("IntCounter",
+            SELF_METRIC_BASE + ":Late Members", String.valueOf(late));
+        selfMetrics.addMetric("IntCounter",
+            SELF_METRIC_BASE + ":Failed Members", String.valueOf(failed));
+        selfMetrics.addMetric("LongCounter",
+            SELF_METRIC_BASE + ":Cycle Time (ms)",
+            String.valueOf(System.currentTimeMillis() - start));
+    }
+
+    private void collectLimited(
+        final String mongoSrv,
+        final MetricFeedBundle batch
+    ) throws Exception {
+        if (concurrencyLimit == null) {
+            collectMember(mongoSrv, batch);
+            return;
+        }
+        concurrencyLimit.acquire();
+        try {
+            collectMember(mongoSrv, batch);
+        } finally {
+            concurrencyLimit.release();
+        }
+    }
+
+    private static boolean isTimeout(final Throwable t) {
+        for (Throwable c = t; c != null; c = c.getCause()) {
+            if (c instanceof SocketTimeoutException
+                || c instanceof MongoTimeoutException
+                || c instanceof MongoExecutionTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public CommandResult getMongoData(
         final String host,
         final int port
     ) throws Exception {
-        return dbAdminCmd(host, port, "serverStatus");
+        return clients.runDBCmd(host, port, "admin", serverStatusCmd);
+    }
+
+    /**
+     * Builds the serverStatus command document.  Sections listed in include
+     * are asked for even if the server leaves them out by default, and
+     * sections listed in exclude are left out of the reply altogether.
+     *
+     * @param include comma-separated top-level sections, may be null
+     * @param exclude comma-separated top-level sections, may be null
+     * @param maxTimeMS command time limit, 0 for none
+     */
+    public static BasicDBObject serverStatusCommand(
+        final String include,
+        final String exclude,
+        final int maxTimeMS
+    ) {
+        final BasicDBObject cmd = new BasicDBObject("serverStatus", 1);
+        addSections(cmd, include, 1);
+        addSections(cmd, exclude, 0);
+        if (maxTimeMS > 0) {
+            cmd.append("maxTimeMS", maxTimeMS);
+        }
+        return cmd;
+    }
+
+    private static void addSections(
+        final BasicDBObject cmd,
+        final String sections,
+        final int value
+    ) {
+        if (isEmpty(sections)) {
+            return;
+        }
+        for (String s : sections.split(",")) {
+            final String section = s.trim();
+            if (section.length() == 0) {
+                continue;
+            }
+            if (section.indexOf('.') >= 0 || section.indexOf('|') >= 0
+                || "serverStatus".equals(section)
+                || "maxTimeMS".equals(section)) {
+                throw new IllegalArgumentException(String.format(
+                    "Invalid serverStatus section %s: only top-level "
+                    + "sections can be included or excluded", section));
+            }
+            cmd.append(section, value);
+        }
     }
 
     private CommandResult dbAdminCmd(
@@ -230,30 +800,375 @@ public class Collector implements Runnable {
         final String database,
         final String cmd
     ) throws Exception {
-        MongoClient dbClient = null;
+        final CommandCache cache = discoveryCache;
+        if (cache != null) {
+            return cache.runDBCmd(host, port, database, cmd);
+        }
+        return clients.runDBCmd(host, port, database, cmd);
+    }
+
+    /**
+     * Closes the cached mongo clients.  The collector can't be used
+     * afterwards.
+     */
+    public void shutdown() {
+        if (topologyRefresher != null) {
+            topologyRefresher.shutdownNow();
+        }
+        if (sampler != null) {
+            sampler.shutdownNow();
+            samplePool.shutdownNow();
+        }
+        if (sources != null) {
+            sources.close();
+        }
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (spoolReplayer != null) {
+            spoolReplayer.shutdownNow();
+        }
+        if (delivery != null) {
+            // give what was collected a chance to go out
+            delivery.close(apiTimeoutMillis > 0
+                ? apiTimeoutMillis : TimeUnit.SECONDS.toMillis(30));
+        }
+        if (chunkSenders != null) {
+            chunkSenders.shutdownNow();
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        sink.close();
+        clients.close();
+    }
+
+    /**
+     * Starts rediscovering the topology in the background, if a refresh
+     * interval is configured, and watching its replica sets, if enabled.
+     */
+    public void startTopologyRefresh() {
+        if (topologyRefreshSecs > 0) {
+            topologyScheduler().scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refreshTopology();
+                }
+            }, topologyRefreshSecs, topologyRefreshSecs, TimeUnit.SECONDS);
+        }
+        if (getBooleanProp(TOPOLOGY_WATCH_PROP)) {
+            startTopologyWatch();
+        }
+    }
+
+    private void startTopologyWatch() {
+        final int heartbeatSecs = getOptionalIntProp(TOPOLOGY_HEARTBEAT_PROP,
+            10);
+        if (heartbeatSecs <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "%s must be positive: %d", TOPOLOGY_HEARTBEAT_PROP,
+                heartbeatSecs));
+        }
+        final TopologyWatcher w = new TopologyWatcher(clients,
+            (int) TimeUnit.SECONDS.toMillis(heartbeatSecs),
+            new TopologyWatcher.Listener() {
+                public boolean topologyChanged() {
+                    return refreshTopology();
+                }
+            }, logger);
+        watcher = w;
+        // on the topology thread, so any rediscovery already queued there
+        // has finished and the watcher starts from the newest topology
+        final ScheduledExecutorService ses = topologyScheduler();
+        ses.execute(new Runnable() {
+            public void run() {
+                final Topology current = topology;
+                if (current != null) {
+                    w.watch(current);
+                }
+            }
+        });
+        ses.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                w.poll();
+            }
+        }, heartbeatSecs, heartbeatSecs, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Rediscovers the topology and switches collection over to it.  Members
+     * that joined are collected from the next cycle on; the clients and
+     * per-member state of members that left are dropped.  If discovery
+     * fails the current topology is kept.
+     *
+     * @return false if discovery failed
+     */
+    public boolean refreshTopology() {
+        final Topology next;
         try {
-            dbClient = setupDbClient(host, port);
-            DB db = dbClient.getDB(database);
-            return db.command(cmd);
-        } finally {
-            if (dbClient != null) {
-                dbClient.close();
+            next = discoverTopology();
+        } catch (Exception e) {
+            logger.log(Level.WARNING,
+                "Exception refreshing topology, keeping the current one: ",
+                e);
+            return false;
+        }
+        if (next == null) {
+            return false;
+        }
+        final Topology current = topology;
+        final Set<String> before = current == null
+            ? new HashSet<String>()
+            : new HashSet<String>(current.getDiscoveredServers());
+        final List<String> after = next.getDiscoveredServers();
+        final Set<String> added = new HashSet<String>(after);
+        added.removeAll(before);
+        before.removeAll(after);
+
+        topology = next;
+        saveSnapshot(next);
+        final TopologyWatcher w = watcher;
+        if (w != null) {
+            w.watch(next);
+        }
+        if (added.isEmpty() && before.isEmpty()) {
+            logger.log(Level.FINE, "Topology unchanged");
+            return true;
+        }
+        logger.log(Level.INFO, "Topology changed, added: {0}, removed: {1}",
+            new Object[] {added, before});
+        retainMembers(after, before);
+        return true;
+    }
+
+    private synchronized ScheduledExecutorService topologyScheduler() {
+        if (topologyRefresher == null) {
+            topologyRefresher = WorkerPools.newScheduler("mongo-topology");
+        }
+        return topologyRefresher;
+    }
+
+    private Topology loadSnapshot() {
+        if (snapshotFile == null) {
+            return null;
+        }
+        try {
+            return TopologySnapshot.load(snapshotFile, props,
+                getStringProp(DB_HOST_PROP), getIntProp(DB_PORT_PROP),
+                logger, clients);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Exception loading topology from "
+                + snapshotFile + ": ", e);
+            return null;
+        }
+    }
+
+    private void saveSnapshot(final Topology t) {
+        if (snapshotFile == null || t == null) {
+            return;
+        }
+        try {
+            TopologySnapshot.save(t, getStringProp(DB_HOST_PROP),
+                getIntProp(DB_PORT_PROP), snapshotFile);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Exception saving topology to "
+                + snapshotFile + ": ", e);
+        }
+    }
+
+    /**
+     * Starts sampling the members every mongo.sample.seconds, if set.
+     */
+    public void startSampling() {
+        if (samples == null) {
+            return;
+        }
+        sampler = WorkerPools.newScheduler("mongo-sampler");
+        sampler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sampleMembers();
+            }
+        }, sampleSecs, sampleSecs, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Samples all members at once on the sample pool.  Samples that
+     * haven't finished within the sample deadline are cancelled, so a slow
+     * member doesn't delay the next round; a member whose sample is still
+     * running (it didn't respond to the interrupt) is skipped.
+     */
+    private void sampleMembers() {
+        final Topology current = topology;
+        if (current == null) {
+            return;
+        }
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String mongoSrv : current.getDiscoveredServers()) {
+            if (sampling.contains(mongoSrv)) {
+                logger.log(Level.FINE,
+                    "Previous sample of {0} still running, skipping it",
+                    mongoSrv);
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    // marked here, so a sample cancelled before it
+                    // started never leaves its member marked
+                    if (!sampling.add(mongoSrv)) {
+                        return null;
+                    }
+                    try {
+                        sampleMember(mongoSrv);
+                    } finally {
+                        sampling.remove(mongoSrv);
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> f : samplePool.invokeAll(tasks,
+                    sampleDeadlineMillis, TimeUnit.MILLISECONDS)) {
+                if (f.isCancelled()) {
+                    logger.log(Level.FINE, "Late sampling a member");
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sampleMember(final String mongoSrv) {
+        try {
+            final MongoServer ms = new MongoServer(mongoSrv);
+            final CommandResult cr = clients.runDBCmd(ms.getHost(),
+                ms.getPort(), "admin", sampleCmd);
+            if (!cr.ok()) {
+                return;
+            }
+            final MetricFeedBundle sample = new MetricFeedBundle(paths);
+            sampleFlattener.flatten(cr,
+                basePathId(ms.getHost(), ms.getPort()), sample);
+            samples.add(mongoSrv, sample);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Exception sampling {0}: {1}",
+                new Object[] {mongoSrv, e});
+        }
+    }
+
+    /**
+     * Starts collecting the additional sources listed in mongo.sources, if
+     * any.
+     */
+    public void startSources() {
+        if (sources != null) {
+            sources.start();
+        }
+    }
+
+    /**
+     * Runs a source's command on a member and delivers the reply's metrics
+     * under the member's base path, in an element named after the source.
+     */
+    private void collectSource(
+        final SourceScheduler.Source source,
+        final String mongoSrv
+    ) throws Exception {
+        final MongoServer ms = new MongoServer(mongoSrv);
+        final MetricFeedBundle mfb = new MetricFeedBundle(paths);
+        final int sourcePath = paths.element(
+            basePathId(ms.getHost(), ms.getPort()), source.getName());
+        if (source.isPerDatabase()) {
+            final CommandResult dbs = clients.runDBCmd(ms.getHost(),
+                ms.getPort(), "admin", "listDatabases");
+            if (!dbs.ok() || !(dbs.get("databases") instanceof BasicDBList)) {
+                return;
+            }
+            for (Object o : (BasicDBList) dbs.get("databases")) {
+                final String db = ((BasicDBObject) o).getString("name");
+                final CommandResult cr = clients.runDBCmd(ms.getHost(),
+                    ms.getPort(), db, source.getCommand());
+                if (cr.ok()) {
+                    sourceFlattener.flatten(cr,
+                        paths.element(sourcePath, db), mfb);
+                }
+            }
+        } else {
+            final CommandResult cr = clients.runDBCmd(ms.getHost(),
+                ms.getPort(), source.getDatabase(), source.getCommand());
+            if (!cr.ok()) {
+                // e.g. replSetGetStatus on a member that isn't in a set
+                logger.log(Level.FINE, "{0} failed on {1}: {2}",
+                    new Object[] {source.getName(), mongoSrv,
+                        cr.getErrorMessage()});
+                return;
+            }
+            sourceFlattener.flatten(cr, sourcePath, mfb);
+        }
+        if (mfb.size() > 0) {
+            send(mongoSrv + "|" + source.getName(), mfb);
+        }
+    }
+
+    /**
+     * Drops the clients and per-member state of every member not in the
+     * given list, and the metric paths of the members that were removed.
+     */
+    private void retainMembers(
+        final List<String> members,
+        final Set<String> removed
+    ) {
+        clients.retain(members);
+        for (String member : removed) {
+            try {
+                final MongoServer ms = new MongoServer(member);
+                paths.remove(basePath(ms.getHost(), ms.getPort()));
+            } catch (Exception ex) {
+                logger.log(Level.FINE, "Bad member {0}: {1}",
+                    new Object[] {member, ex});
             }
+            paths.remove(lateMetricPath(member));
+        }
+        flattener.retain(members);
+        if (samples != null) {
+            samples.retain(members);
+        }
+        if (deltas != null) {
+            deltas.retain(members);
+        }
+        if (changes != null) {
+            changes.retain(members);
         }
     }
 
     public MetricFeedBundle makeMetrics(
         final CommandResult mcr
     ) throws Exception {
-        MetricFeedBundle mfb = new MetricFeedBundle();
+        MetricFeedBundle mfb = new MetricFeedBundle(paths);
         ServerAddress sa = mcr.getServerUsed();
+        flattener.flatten(mcr, basePathId(sa.getHost(), sa.getPort()), mfb);
+        return mfb;
+    }
+
+    private int basePathId(final String host, final int port) {
+        return paths.intern(basePath(host, port));
+    }
+
+    private static String basePath(final String host, final int port) {
         // Add a "mongo segment" to the metric path to insure that
         // mongo metrics are grouped/segregated in the metric browser.
         // Note that we can't use ":" in that segment though
-        final String basePath = String.format("MongoDB@%s;%d",
-            sa.getHost(), sa.getPort());
-        makeMetrics(mfb, basePath, mcr);
-        return mfb;
+        return String.format("MongoDB@%s;%d", host, port);
+    }
+
+    private static String lateMetricPath(final String member) {
+        final MetricPath mp = new MetricPath(SELF_METRIC_BASE);
+        mp.addElement("Members");
+        mp.addElement(member);
+        mp.addMetric("Late");
+        return mp.toString();
     }
 
     private boolean isValidData(BasicDBObject bdo) {
@@ -272,130 +1187,10 @@ public class Collector implements Runnable {
         return false;
     }
 
-    private void makeMetrics(
-        final MetricFeedBundle mfb,
-        final String basePath,
-        final BasicDBObject bdo
-    ) throws Exception {
-        for (String s : bdo.keySet()) {
-            final MetricPath metricPath = new MetricPath(basePath);
-            final Object o = bdo.get(s);
-            if (o instanceof BasicDBObject) {
-                metricPath.addElement(s);
-                makeMetrics(mfb, metricPath.toString(), (BasicDBObject)o);
-            } else if (o instanceof BasicDBList) {
-                metricPath.addElement(s);
-                processBasicDBList(mfb, metricPath.toString(), (BasicDBList)o);
-            } else if (isKnownDataType(o)) {
-                metricPath.addMetric(s);
-                makeMetric(metricPath.toString(), o, mfb);
-            } else {
-                logger.log(Level.WARNING,
-                    "Unknown type in mongo output for key {0}: {1}",
-                    new Object[] {s, o.getClass().getName()});
-            }
-        }
-    }
-
-    private void processBasicDBList(
-        final MetricFeedBundle mfb,
-        final String basePath,
-        final BasicDBList bdl
-    ) throws Exception {
-        int i = 0;
-        for (Object o : bdl) {
-            MetricPath metricPath = new MetricPath(basePath);
-            if (o instanceof BasicDBObject) {
-                metricPath.addElement(String.format("%d", i++));
-                makeMetrics(
-                    mfb, metricPath.toString(), (BasicDBObject)o);
-            } else if (o instanceof BasicDBList) {
-                metricPath.addElement(String.format("%d", i++));
-                processBasicDBList(mfb, metricPath.toString(), (BasicDBList)o);
-            } else if (isKnownDataType(o)) {
-                metricPath.addMetric(String.format("%d", i++));
-                makeMetric(metricPath.toString(), o, mfb);
-            } else {
-                logger.log(Level.WARNING,
-                    "Unknown type in mongo output for DBList {0}: {1}",
-                    new Object[] {bdl, o.getClass().getName()});
-            }
-        }
-    }
-
-    private void makeMetric(
-        final String metricPath,
-        final Object dataObj,
-        final MetricFeedBundle mfb
-    ) {
-        if (dataObj instanceof String) {
-            mfb.addMetric("StringEvent", metricPath, (String)dataObj);
-        } else if (dataObj instanceof Number) {
-            String type;
-            if (dataObj instanceof Double) {
-                // API doesn't support floating-point metric values
-                // so we round the value to a long, and also create a string
-                // metric to display the value (just for debugging etc.)
-                type = "LongCounter";
-                long val = Math.round((Double)dataObj);
-                mfb.addMetric("LongCounter", metricPath + " (rounded)",
-                    String.valueOf(val));
-                mfb.addMetric("StringEvent", metricPath + " (string)",
-                    dataObj.toString());
-            } else {
-                if (dataObj instanceof Long) {
-                    type = "LongCounter";
-                } else {
-                    // treat as Integer
-                    type = "IntCounter";
-                }
-                mfb.addMetric(type, metricPath, dataObj.toString());
-            }
-        } else if (dataObj instanceof Date) {
-            mfb.addMetric("TimeStamp", metricPath,
-                String.valueOf(((Date)dataObj).getTime()));
-        } else if (dataObj instanceof Boolean) {
-            mfb.addMetric("StringEvent", metricPath, dataObj.toString());
-        }
-    }
-
-    private boolean isKnownDataType(final Object dataObj) {
-        return (dataObj instanceof String ||
-            dataObj instanceof Number ||
-            dataObj instanceof Date ||
-            dataObj instanceof Boolean);
-    }
-
     public void deliverMetrics(
         final MetricFeedBundle mfb
     ) throws Exception {
-        final String json = mfb.toString();
-        final HttpURLConnection conn =
-            (HttpURLConnection) apiUrl.openConnection();
-        conn.setDoOutput(true);
-        conn.setRequestProperty("Content-Type", "application/json");
-        conn.getOutputStream().write(json.getBytes());
-        final int rc = conn.getResponseCode();
-        if (rc != 200) {
-            logger.log(Level.SEVERE, "Error code: {0}, payload: {1}",
-                new Object[] {rc, getPayload(conn.getErrorStream())});
-        } else {
-            logger.log(Level.INFO, "Successful metric delivery");
-        }
-    }
-
-    private String getPayload(
-        final InputStream is
-    ) throws Exception {
-        BufferedReader rdr = new BufferedReader(
-            new InputStreamReader(is));
-        String line;
-        StringBuilder sb = new StringBuilder();
-        while ((line = rdr.readLine()) != null) {
-            sb.append(String.format("%s%n", line));
-        }
-        rdr.close();
-        return sb.toString();
+        sink.send(mfb);
     }
 
     private void processProperties() {
@@ -406,7 +1201,34 @@ public class Collector implements Runnable {
         getIntProp(DB_PORT_PROP);
         setupCreds(mongoCreds, props);
         setInterval();
-        setApiUrl();
+        setupDelivery();
+        setupWorkers();
+        serverStatusCmd = serverStatusCommand(
+            getOptionalStringProp(STATUS_INCLUDE_PROP),
+            getOptionalStringProp(STATUS_EXCLUDE_PROP),
+            memberTimeoutMillis);
+        setupSampling();
+        setupSources();
+        final String include = getOptionalStringProp(METRICS_INCLUDE_PROP);
+        final String exclude = getOptionalStringProp(METRICS_EXCLUDE_PROP);
+        flattener = new MetricFlattener(paths,
+            isEmpty(include) && isEmpty(exclude)
+                ? null : new MetricFilter(include, exclude),
+            logger);
+        rawFlatten = getBooleanProp(RAW_FLATTEN_PROP);
+        batchDelivery = getBooleanProp(BATCH_DELIVERY_PROP);
+        batchMaxMetrics = getOptionalIntProp(BATCH_MAX_METRICS_PROP, 0);
+        if (getBooleanProp(DELTA_ENABLED_PROP)) {
+            String counters = getOptionalStringProp(DELTA_COUNTERS_PROP);
+            if (isEmpty(counters)) {
+                counters = CounterDeltaTracker.DEFAULT_COUNTERS;
+            }
+            deltas = new CounterDeltaTracker(paths, counters);
+        }
+        if (getBooleanProp(DEDUP_ENABLED_PROP)) {
+            changes = new ChangeFilter(
+                getOptionalIntProp(DEDUP_REFRESH_PROP, 10));
+        }
     }
 
     public static void setupCreds(
@@ -440,38 +1262,35 @@ public class Collector implements Runnable {
         }
     }
 
-    private MongoClient setupDbClient(final String dbHost, final int dbPort) {
-        final boolean useSSL = getBooleanProp(USE_SSL_PROP);
-        final String clientTrustStore =
-            getOptionalStringProp(SSL_CLIENT_TRUST_STORE_FILE_PROP);
-        final String clientPasswd =
-            getOptionalStringProp(SSL_CLIENT_TRUST_STORE_PASSWD_PROP);
-
-        try {
-            MongoClientOptions.Builder builder =
-                new MongoClientOptions.Builder();
-
-            if (useSSL) {
-                System.setProperty(SSL_CLIENT_TRUST_STORE_FILE_PROP,
-                    clientTrustStore);
-                System.setProperty(SSL_CLIENT_TRUST_STORE_PASSWD_PROP,
-                    clientPasswd);
-                builder = builder.socketFactory(SSLSocketFactory.getDefault());
-            }
-
-            final MongoClientOptions options = builder.build();
-            return new MongoClient(
-                new ServerAddress(dbHost, dbPort),
-                mongoCreds,
-                options);
-        } catch (Exception ex) {
-            throw new RuntimeException(
-                "Can't initialize mongo client", ex);
-        }
-    }
-
     private void setInterval() {
         collectionInterval = getIntProp(COLLECTION_INTERVAL_PROP);
+        memberTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(
+            getOptionalIntProp(MEMBER_TIMEOUT_PROP, 0));
+    }
+
+    private void setupWorkers() {
+        final int threads = getOptionalIntProp(COLLECTION_THREADS_PROP, 1);
+        final int maxConcurrent = getOptionalIntProp(MAX_CONCURRENT_PROP, 0);
+        if (getBooleanProp(VIRTUAL_THREADS_PROP)) {
+            // one (cheap) thread per server; the semaphore bounds how many
+            // servers of this cluster are queried at once
+            final int fallbackThreads = maxConcurrent > 0
+                ? maxConcurrent
+                : Math.max(threads, DEFAULT_FALLBACK_THREADS);
+            if (!WorkerPools.virtualThreadsSupported()) {
+                logger.log(Level.WARNING,
+                    "Virtual threads are not available in this JVM; "
+                    + "using {0} platform threads instead",
+                    fallbackThreads);
+            }
+            workers = WorkerPools.newVirtualPool(
+                "mongo-collector", fallbackThreads);
+            if (maxConcurrent > 0) {
+                concurrencyLimit = new Semaphore(maxConcurrent);
+            }
+        } else if (threads > 1) {
+            workers = WorkerPools.newFixedPool(threads, "mongo-collector");
+        }
     }
 
     private void setApiUrl() {
@@ -485,6 +1304,243 @@ public class Collector implements Runnable {
         }
     }
 
+    private void setupSampling() {
+        sampleSecs = getOptionalIntProp(SAMPLE_SECONDS_PROP, 0);
+        if (sampleSecs <= 0) {
+            return;
+        }
+        if (collectionInterval > 0 && sampleSecs >= collectionInterval) {
+            throw new IllegalArgumentException(String.format(
+                "%s must be less than %s", SAMPLE_SECONDS_PROP,
+                COLLECTION_INTERVAL_PROP));
+        }
+        String sampled = getOptionalStringProp(SAMPLE_PATHS_PROP);
+        if (isEmpty(sampled)) {
+            sampled = DEFAULT_SAMPLE_PATHS;
+        }
+        // ask only for the sections the sampled paths are in
+        final Set<String> needed = new HashSet<String>();
+        for (String p : sampled.split(",")) {
+            needed.add(p.trim().split("[|:]")[0]);
+        }
+        final StringBuilder exclude = new StringBuilder();
+        for (String section : SAMPLE_EXCLUDED_SECTIONS) {
+            if (!needed.contains(section)) {
+                exclude.append(section).append(',');
+            }
+        }
+        // leave a quarter of the interval so one round never runs into
+        // the next
+        sampleDeadlineMillis = (int) TimeUnit.SECONDS.toMillis(sampleSecs)
+            * 3 / 4;
+        final int sampleThreads = getOptionalIntProp(SAMPLE_THREADS_PROP, 4);
+        if (sampleThreads <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "%s must be positive: %d", SAMPLE_THREADS_PROP,
+                sampleThreads));
+        }
+        sampleCmd = serverStatusCommand(null, exclude.toString(),
+            memberTimeoutMillis > 0
+                ? Math.min(memberTimeoutMillis, sampleDeadlineMillis)
+                : sampleDeadlineMillis);
+        sampleFlattener = new MetricFlattener(paths,
+            new MetricFilter(sampled, null), logger);
+        samples = new SampleAggregator(paths);
+        samplePool = WorkerPools.newFixedPool(sampleThreads, "mongo-sample");
+    }
+
+    private void setupSources() {
+        final String names = getOptionalStringProp(SOURCES_PROP);
+        if (isEmpty(names)) {
+            return;
+        }
+        final List<SourceScheduler.Source> list =
+            new ArrayList<SourceScheduler.Source>();
+        for (String n : names.split(",")) {
+            final String name = n.trim();
+            if (name.length() > 0) {
+                list.add(makeSource(name));
+            }
+        }
+        final int memberLimit =
+            getOptionalIntProp(SOURCES_MEMBER_MAX_CONCURRENT_PROP, 1);
+        if (memberLimit < 0) {
+            throw new IllegalArgumentException(String.format(
+                "%s can't be negative: %d",
+                SOURCES_MEMBER_MAX_CONCURRENT_PROP, memberLimit));
+        }
+        sourceFlattener = new MetricFlattener(paths, null, logger);
+        sources = new SourceScheduler(list,
+            new SourceScheduler.Members() {
+                public List<String> get() {
+                    final Topology current = topology;
+                    return current == null
+                        ? new ArrayList<String>()
+                        : current.getDiscoveredServers();
+                }
+            },
+            new SourceScheduler.Runner() {
+                public void run(
+                    final SourceScheduler.Source source,
+                    final String member
+                ) throws Exception {
+                    collectSource(source, member);
+                }
+            },
+            Math.max(1, getOptionalIntProp(SOURCES_THREADS_PROP, 4)),
+            memberLimit, logger);
+    }
+
+    /**
+     * Builds one of the known sources, with its interval, jitter and
+     * concurrency limit from mongo.source.&lt;name&gt;.* properties.
+     */
+    private SourceScheduler.Source makeSource(final String name) {
+        final BasicDBObject cmd = new BasicDBObject(name, 1);
+        boolean perDatabase = false;
+        if ("dbStats".equals(name)) {
+            perDatabase = true;
+        } else if (!"replSetGetStatus".equals(name) && !"top".equals(name)
+            && !"connPoolStats".equals(name)) {
+            throw new IllegalArgumentException(String.format(
+                "Invalid %s property: unknown source %s (known sources are "
+                + "replSetGetStatus, dbStats, top and connPoolStats)",
+                SOURCES_PROP, name));
+        }
+        if (memberTimeoutMillis > 0) {
+            cmd.append("maxTimeMS", memberTimeoutMillis);
+        }
+        final String prefix = SOURCE_PROP_PREFIX + name;
+        final int interval = getOptionalIntProp(prefix + ".interval.seconds",
+            collectionInterval > 0 ? collectionInterval : 60);
+        final int jitter = getOptionalIntProp(prefix + ".jitter.seconds", 0);
+        final int maxConcurrent =
+            getOptionalIntProp(prefix + ".max.concurrent", 0);
+        if (interval <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "%s.interval.seconds must be positive", prefix));
+        }
+        return new SourceScheduler.Source(name, "admin", cmd, perDatabase,
+            TimeUnit.SECONDS.toMillis(interval),
+            TimeUnit.SECONDS.toMillis(jitter), maxConcurrent);
+    }
+
+    private void setupDelivery() {
+        final int timeoutSecs = getOptionalIntProp(APM_TIMEOUT_PROP, 30);
+        if (timeoutSecs < 0) {
+            throw new IllegalArgumentException(String.format(
+                "%s can't be negative: %d", APM_TIMEOUT_PROP, timeoutSecs));
+        }
+        apiTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(timeoutSecs);
+        setupSink();
+        maxPayloadBytes = getOptionalIntProp(DELIVERY_MAX_BYTES_PROP, 0);
+        deliveryRetries = getOptionalIntProp(DELIVERY_RETRIES_PROP, 0);
+        if (maxPayloadBytes > 0) {
+            chunkSenders = WorkerPools.newFixedPool(
+                Math.max(1, getOptionalIntProp(DELIVERY_THREADS_PROP, 4)),
+                "apm-delivery-chunks");
+        }
+
+        setupSpool();
+
+        final int queueSize = getOptionalIntProp(DELIVERY_QUEUE_PROP, 0);
+        if (queueSize <= 0) {
+            return;
+        }
+        final String policy = getOptionalStringProp(DELIVERY_DROP_PROP);
+        final DeliveryQueue.DropPolicy dropPolicy;
+        if (isEmpty(policy) || "oldest".equalsIgnoreCase(policy.trim())) {
+            dropPolicy = DeliveryQueue.DropPolicy.OLDEST;
+        } else if ("latest".equalsIgnoreCase(policy.trim())) {
+            dropPolicy = DeliveryQueue.DropPolicy.LATEST;
+        } else {
+            throw new IllegalArgumentException(String.format(
+                "Invalid %s property: %s", DELIVERY_DROP_PROP, policy));
+        }
+        delivery = new DeliveryQueue(queueSize, dropPolicy,
+            new DeliveryQueue.Sender() {
+                public void send(final MetricFeedBundle mfb)
+                    throws Exception {
+                    deliver(mfb);
+                }
+
+                public void lost(
+                    final String member,
+                    final MetricFeedBundle mfb
+                ) {
+                    undelivered(member);
+                }
+            }, logger);
+    }
+
+    private void setupSink() {
+        final String type = getOptionalStringProp(SINK_PROP).trim();
+        if (isEmpty(type) || "http".equalsIgnoreCase(type)) {
+            setApiUrl();
+            feed = new MetricFeedClient(apiUrl, apiTimeoutMillis,
+                getBooleanProp(APM_GZIP_PROP), logger);
+            sink = feed;
+        } else if ("tcp".equalsIgnoreCase(type)) {
+            sink = new TcpMetricSink(getStringProp(APM_HOST_PROP),
+                getOptionalIntProp(SINK_TCP_PORT_PROP, 8000),
+                apiTimeoutMillis, logger);
+        } else if ("file".equalsIgnoreCase(type)) {
+            final String file = getOptionalStringProp(SINK_FILE_PROP);
+            sink = new FileMetricSink(
+                new File(isEmpty(file) ? "metrics.ndjson" : file.trim()),
+                getOptionalIntProp(SINK_FILE_MAX_MB_PROP, 100) * 1024L * 1024L,
+                getOptionalIntProp(SINK_FILE_COUNT_PROP, 5), logger);
+        } else {
+            throw new IllegalArgumentException(String.format(
+                "Invalid %s property: %s", SINK_PROP, type));
+        }
+        logger.log(Level.INFO, "Delivering metrics to the {0} sink",
+            isEmpty(type) ? "http" : type);
+    }
+
+    private void setupSpool() {
+        final String dir = getOptionalStringProp(SPOOL_DIR_PROP);
+        if (isEmpty(dir)) {
+            return;
+        }
+        if (feed == null) {
+            // spooled payloads are metricFeed JSON, replayed over http
+            throw new IllegalArgumentException(String.format(
+                "%s is only supported with the http sink", SPOOL_DIR_PROP));
+        }
+        final int maxMB = getOptionalIntProp(SPOOL_MAX_MB_PROP, 64);
+        final int rate = getOptionalIntProp(SPOOL_REPLAY_RATE_PROP, 5);
+        if (maxMB <= 0 || rate <= 0) {
+            throw new IllegalArgumentException(String.format(
+                "%s and %s must be positive", SPOOL_MAX_MB_PROP,
+                SPOOL_REPLAY_RATE_PROP));
+        }
+        try {
+            spool = new DeliverySpool(new File(dir.trim()),
+                maxMB * 1024L * 1024L, logger);
+        } catch (IOException ex) {
+            throw new RuntimeException("Can't open metric spool", ex);
+        }
+        final DeliverySpool.Sender sender = new DeliverySpool.Sender() {
+            public void send(final byte[] b, final int off, final int len)
+                throws Exception {
+                feed.send(b, off, len);
+            }
+        };
+        spoolReplayer = WorkerPools.newScheduler("apm-spool");
+        spoolReplayer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (!spool.isEmpty()) {
+                    final int n = spool.replay(rate, sender);
+                    if (n > 0) {
+                        logger.log(Level.INFO,
+                            "Replayed {0} spooled metric payloads", n);
+                    }
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
     private String getStringProp(final String pname) {
         return getStringProp(pname, props);
     }
@@ -526,6 +1582,27 @@ public class Collector implements Runnable {
         return ret;
     }
 
+    private int getOptionalIntProp(final String pname, final int dflt) {
+        return getOptionalIntProp(pname, dflt, props);
+    }
+
+    public static int getOptionalIntProp(
+        final String pname,
+        final int dflt,
+        final Properties p
+    ) {
+        final String val = p.getProperty(pname);
+        if (isEmpty(val)) {
+            return dflt;
+        }
+        try {
+            return Integer.parseInt(val.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(
+                String.format("invalid integer property: %s%n", pname));
+        }
+    }
+
     private boolean getBooleanProp(final String pname) {
         return getBooleanProp(pname, props);
     }
@@ -539,7 +1616,25 @@ public class Collector implements Runnable {
         return (s == null || "".equals(s.trim()));
     }
 
-    public Topology discoverTopology() throws Exception {
+    /**
+     * Discovers the topology from the configured host.  Every command run
+     * during discovery goes through a cache for the pass, so no server is
+     * asked the same thing twice.
+     */
+    public synchronized Topology discoverTopology() throws Exception {
+        final CommandCache cache = new CommandCache(clients);
+        discoveryCache = cache;
+        try {
+            return discoverTopology(cache);
+        } finally {
+            discoveryCache = null;
+            logger.log(Level.INFO, "Topology discovery: {0}", cache);
+        }
+    }
+
+    private Topology discoverTopology(
+        final CommandCache cache
+    ) throws Exception {
 
         final String host = getStringProp(DB_HOST_PROP);
         final int port = getIntProp(DB_PORT_PROP);
@@ -548,6 +1643,7 @@ public class Collector implements Runnable {
             new Object[] {host, port});
 
         final CommandResult master = dbAdminCmd(host, port, "isMaster");
+        Topology discovered = null;
 
         // ismaster returns true for a standalone mongod instance, a mongos
         // instance, a mongod shard node, or a primary in a replica set
@@ -559,18 +1655,27 @@ public class Collector implements Runnable {
             }
 
             if (isInShardCluster(master)) {
-                topology = new ShardCluster(props, host, port, logger);
-                topology.discoverServers(getClusterNodeType());
+                discovered = new ShardCluster(
+                    props, host, port, logger, clients);
+                discovered.setCommandCache(cache);
+                discovered.discoverServers(getClusterNodeType());
             } else if (isReplicaSet(master)) {
-                topology = new ReplicaSet(props, host, port, logger);
-                topology.discoverServers("doesn't matter");
+                discovered = new ReplicaSet(
+                    props, host, port, logger, clients);
+                discovered.setCommandCache(cache);
+                discovered.discoverServers("doesn't matter");
             } else {
-                topology = new StandaloneMongod(props, host, port, logger);
-                topology.discoverServers("doesn't matter");
+                discovered = new StandaloneMongod(
+                    props, host, port, logger, clients);
+                discovered.setCommandCache(cache);
+                discovered.discoverServers("doesn't matter");
             }
         }
-        logger.log(Level.INFO, "Topology: {0}", topology);
-        return topology;
+        if (discovered != null) {
+            discovered.setCommandCache(null);
+        }
+        logger.log(Level.INFO, "Topology: {0}", discovered);
+        return discovered;
     }
 
     private boolean isInShardCluster(
@@ -638,24 +1743,18 @@ public class Collector implements Runnable {
         return nodeType;
     }
 
-    final boolean isConfigServer(final String host, final int port) {
-
-        boolean isConfigServer = false;
-
-        MongoClient dbClient = null;
-
-        try {
-            dbClient = setupDbClient(host, port);
-            final DB configDB = dbClient.getDB("config");
-            if (configDB.getCollectionFromString("mongos").find().hasNext()) {
-                isConfigServer = true;
-            }
-        } finally {
-            if (dbClient != null) {
-                dbClient.close();
-            }
-        }
-        return isConfigServer;
+    final boolean isConfigServer(
+        final String host,
+        final int port
+    ) throws Exception {
+        return clients.withClient(host, port,
+            new MongoClientRegistry.ClientTask<Boolean>() {
+                public Boolean run(final MongoClient client) {
+                    final DB configDB = client.getDB("config");
+                    return configDB.getCollectionFromString("mongos")
+                        .find().hasNext();
+                }
+            });
     }
 
     private boolean isReplicaSet(final CommandResult cr) {
@@ -0,0 +1,105 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.mongodb.CommandResult;
+
+/**
+ * Results of the commands run during one topology discovery pass, so each
+ * server is asked each question (isMaster, shardingState, ...) at most
+ * once per pass.  A command that fails is not retried within the pass
+ * either; its exception is thrown again.  Concurrent callers asking the
+ * same question wait for the one command in flight.
+ */
+public class CommandCache {
+
+    private final MongoClientRegistry clients;
+    private final ConcurrentMap<String, FutureTask<CommandResult>> results =
+        new ConcurrentHashMap<String, FutureTask<CommandResult>>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public CommandCache(final MongoClientRegistry clients) {
+        this.clients = clients;
+    }
+
+    public CommandResult runDBCmd(
+        final String host,
+        final int port,
+        final String database,
+        final String cmd
+    ) throws Exception {
+        final String key = String.format("%s/%s.%s",
+            MongoClientRegistry.key(host, port), database, cmd);
+        FutureTask<CommandResult> f = results.get(key);
+        if (f == null) {
+            final FutureTask<CommandResult> task =
+                new FutureTask<CommandResult>(new Callable<CommandResult>() {
+                    public CommandResult call() throws Exception {
+                        return clients.runDBCmd(host, port, database, cmd);
+                    }
+                });
+            f = results.putIfAbsent(key, task);
+            if (f == null) {
+                misses.incrementAndGet();
+                f = task;
+                task.run();
+            } else {
+                hits.incrementAndGet();
+            }
+        } else {
+            hits.incrementAndGet();
+        }
+        try {
+            return f.get();
+        } catch (ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d commands run, %d answered from cache",
+            misses.get(), hits.get());
+    }
+}
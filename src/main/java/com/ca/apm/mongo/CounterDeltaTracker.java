@@ -0,0 +1,215 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns cumulative serverStatus counters (opcounters, network bytes, ...)
+ * into per-interval deltas and per-second rates.
+ *
+ * The previous value of every counter is kept per server.  For each counter
+ * in a new sample, "&lt;name&gt; (delta)" (a PerIntervalCounter) and
+ * "&lt;name&gt; (per second)" are added to the bundle.  A server restart,
+ * detected by a changed pid or a smaller uptime, resets the previous
+ * values so no bogus negative deltas are reported.
+ */
+public class CounterDeltaTracker {
+
+    /** Counter sections, relative to the server's base path. */
+    public static final String DEFAULT_COUNTERS =
+        "opcounters,opcountersRepl,network,asserts,metrics|document,"
+        + "metrics|operation,metrics|queryExecutor,metrics|record,"
+        + "metrics|repl|apply,metrics|ttl,"
+        + "wiredTiger|cache|bytes read into cache,"
+        + "wiredTiger|cache|bytes written from cache,"
+        + "wiredTiger|cache|pages read into cache,"
+        + "wiredTiger|cache|pages written from cache";
+
+    private static final byte UNKNOWN = 0;
+    private static final byte COUNTER = 1;
+    private static final byte NOT_COUNTER = 2;
+
+    private final MetricPathRegistry paths;
+    private final String[] prefixes;
+    private final ConcurrentMap<String, MemberState> members =
+        new ConcurrentHashMap<String, MemberState>();
+    // classification of path ids; races only ever store the same value
+    private volatile byte[] classes = new byte[1024];
+
+    public CounterDeltaTracker(
+        final MetricPathRegistry paths,
+        final String counters
+    ) {
+        this.paths = paths;
+        final List<String> p = new ArrayList<String>();
+        for (String c : counters.split(",")) {
+            if (c.trim().length() > 0) {
+                p.add(c.trim().replace(':', '|'));
+            }
+        }
+        prefixes = p.toArray(new String[p.size()]);
+    }
+
+    /**
+     * Adds deltas and rates for the counters in a server's bundle.
+     *
+     * @param member     the server's "host:port"
+     * @param basePathId the server's base path in the registry
+     * @param mfb        the server's freshly flattened metrics
+     * @param now        sample time in milliseconds
+     */
+    public void process(
+        final String member,
+        final int basePathId,
+        final MetricFeedBundle mfb,
+        final long now
+    ) {
+        MemberState ms = members.get(member);
+        if (ms == null) {
+            members.putIfAbsent(member, new MemberState());
+            ms = members.get(member);
+        }
+
+        final int pidId = paths.metric(basePathId, "pid");
+        final int uptimeId = paths.metric(basePathId, "uptimeMillis");
+        long pid = -1;
+        long uptime = -1;
+        final int n = mfb.size();
+        for (int i = 0; i < n; i++) {
+            if (mfb.getPathId(i) == pidId && !mfb.isText(i)) {
+                pid = mfb.getLong(i);
+            } else if (mfb.getPathId(i) == uptimeId && !mfb.isText(i)) {
+                uptime = mfb.getLong(i);
+            }
+        }
+
+        synchronized (ms) {
+            final boolean restarted = ms.sampleTime > 0
+                && (pid != ms.pid || (uptime >= 0 && uptime < ms.uptime));
+            if (restarted) {
+                ms.previous.clear();
+            }
+            // prefer the server's own clock for the elapsed time
+            final long elapsed = uptime >= 0 && ms.uptime >= 0
+                ? uptime - ms.uptime : now - ms.sampleTime;
+
+            for (int i = 0; i < n; i++) {
+                final byte type = mfb.getType(i);
+                if (mfb.isText(i) || (type != MetricFeedBundle.LONG_COUNTER
+                        && type != MetricFeedBundle.INT_COUNTER)) {
+                    continue;
+                }
+                final int id = mfb.getPathId(i);
+                if (!isCounter(id)) {
+                    continue;
+                }
+                final long cur = mfb.getLong(i);
+                final boolean seen = ms.previous.containsKey(id);
+                final long prev = ms.previous.get(id, 0);
+                ms.previous.put(id, cur);
+                if (!seen || restarted || cur < prev) {
+                    continue;
+                }
+                final long delta = cur - prev;
+                mfb.addLong(MetricFeedBundle.PER_INTERVAL_COUNTER,
+                    paths.suffixed(id, " (delta)"), delta);
+                if (elapsed > 0) {
+                    mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+                        paths.suffixed(id, " (per second)"),
+                        Math.round(delta * 1000.0 / elapsed));
+                }
+            }
+            ms.pid = pid;
+            ms.uptime = uptime;
+            ms.sampleTime = now;
+        }
+    }
+
+    /**
+     * Forgets the state of every server not in the given set.
+     */
+    public void retain(final Collection<String> keep) {
+        final Set<String> k = new HashSet<String>(keep);
+        members.keySet().retainAll(k);
+    }
+
+    private boolean isCounter(final int id) {
+        byte[] c = classes;
+        if (id >= c.length) {
+            synchronized (this) {
+                c = classes;
+                if (id >= c.length) {
+                    final byte[] grown =
+                        new byte[Math.max(c.length * 2, id + 1)];
+                    System.arraycopy(c, 0, grown, 0, c.length);
+                    classes = grown;
+                    c = grown;
+                }
+            }
+        }
+        if (c[id] == UNKNOWN) {
+            c[id] = classify(paths.getPath(id)) ? COUNTER : NOT_COUNTER;
+        }
+        return c[id] == COUNTER;
+    }
+
+    private boolean classify(final String path) {
+        if (path == null) {
+            // removed from the registry
+            return false;
+        }
+        // the base path ("MongoDB@host;port") has no separators
+        int start = path.indexOf('|');
+        final int colon = path.indexOf(':');
+        if (start < 0 || (colon >= 0 && colon < start)) {
+            start = colon;
+        }
+        if (start < 0) {
+            return false;
+        }
+        final String rel = path.substring(start + 1).replace(':', '|');
+        for (String p : prefixes) {
+            if (rel.startsWith(p) && (rel.length() == p.length()
+                    || rel.charAt(p.length()) == '|'
+                    || rel.charAt(p.length()) == ' ')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class MemberState {
+        private final IntLongMap previous = new IntLongMap(256);
+        private long pid = -1;
+        private long uptime = -1;
+        private long sampleTime;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue between collection and delivery.  Bundles are added by
+ * the collecting threads and sent one at a time by a dedicated sender
+ * thread, so a slow or unreachable agent no longer holds up collection.
+ *
+ * When the agent falls behind and the queue is full, the oldest queued
+ * bundle is dropped.  With {@link DropPolicy#LATEST} a bundle also
+ * replaces any bundle of the same member still waiting to be sent, so at
+ * most one (the newest) is queued per member.  Bundles that are dropped
+ * or fail to send are handed back to {@link Sender#lost}.
+ */
+public class DeliveryQueue {
+
+    /** What to give up when the agent can't keep up. */
+    public enum DropPolicy {
+        OLDEST,
+        LATEST
+    }
+
+    /** Sends one bundle to the agent. */
+    public interface Sender {
+        void send(MetricFeedBundle mfb) throws Exception;
+
+        /**
+         * Called, outside the queue's lock, for a bundle that was dropped
+         * or could not be sent.
+         */
+        void lost(String member, MetricFeedBundle mfb);
+    }
+
+    private final int capacity;
+    private final DropPolicy policy;
+    private final Sender sender;
+    private final Logger logger;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+    private boolean sending;
+    private boolean closed;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendNanos = new AtomicLong();
+    private final ExecutorService thread;
+
+    public DeliveryQueue(
+        final int capacity,
+        final DropPolicy policy,
+        final Sender sender,
+        final Logger l
+    ) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                "queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.sender = sender;
+        this.logger = l;
+        thread = WorkerPools.newFixedPool(1, "apm-delivery");
+        thread.execute(new Runnable() {
+            public void run() {
+                sendLoop();
+            }
+        });
+    }
+
+    /**
+     * Queues a bundle for delivery.  Never blocks.
+     *
+     * @param member the member the bundle is from, or null if it isn't
+     *               from a single member (batches, self-metrics)
+     * @return false if the queue is closed
+     */
+    public boolean offer(final String member, final MetricFeedBundle mfb) {
+        Entry lost = null;
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (policy == DropPolicy.LATEST && member != null) {
+                for (Entry e : queue) {
+                    if (member.equals(e.member)) {
+                        lost = new Entry(member, e.mfb);
+                        e.mfb = mfb;
+                        dropped.incrementAndGet();
+                        return true;
+                    }
+                }
+            }
+            if (queue.size() == capacity) {
+                lost = queue.poll();
+                dropped.incrementAndGet();
+            }
+            queue.add(new Entry(member, mfb));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+            if (lost != null) {
+                sender.lost(lost.member, lost.mfb);
+            }
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of bundles dropped since the last call.
+     */
+    public long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+
+    /**
+     * Adds the queue's depth, drops and send latency since the last call
+     * to a bundle of self-metrics.
+     */
+    public void addSelfMetrics(
+        final MetricFeedBundle selfMetrics,
+        final String base
+    ) {
+        final long n = sent.getAndSet(0);
+        final long nanos = sendNanos.getAndSet(0);
+        selfMetrics.addMetric("IntCounter", base + ":Depth",
+            String.valueOf(size()));
+        selfMetrics.addMetric("PerIntervalCounter", base + ":Dropped",
+            String.valueOf(takeDropped()));
+        selfMetrics.addMetric("PerIntervalCounter", base + ":Sent",
+            String.valueOf(n));
+        selfMetrics.addMetric("LongCounter", base + ":Average Send Time (ms)",
+            String.valueOf(n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(
+                nanos / n)));
+    }
+
+    /**
+     * Waits up to the given time for the queued bundles to be sent, then
+     * stops the sender.  Bundles still queued after that are dropped.
+     */
+    public void close(final long timeoutMillis) {
+        final long deadline = System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            closed = true;
+            while (!queue.isEmpty() || sending) {
+                final long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    logger.log(Level.WARNING,
+                        "Dropping {0} undelivered metric bundles",
+                        queue.size());
+                    break;
+                }
+                idle.awaitNanos(left);
+            }
+            queue.clear();
+            notEmpty.signalAll();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        thread.shutdownNow();
+    }
+
+    private void sendLoop() {
+        while (true) {
+            final Entry entry;
+            lock.lock();
+            try {
+                sending = false;
+                idle.signalAll();
+                while (queue.isEmpty()) {
+                    if (closed) {
+                        return;
+                    }
+                    notEmpty.await();
+                }
+                entry = queue.poll();
+                sending = true;
+            } catch (InterruptedException ie) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            final long start = System.nanoTime();
+            try {
+                sender.send(entry.mfb);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Exception: ", e);
+                sender.lost(entry.member, entry.mfb);
+            }
+            sendNanos.addAndGet(System.nanoTime() - start);
+            sent.incrementAndGet();
+        }
+    }
+
+    private static final class Entry {
+        private final String member;
+        private MetricFeedBundle mfb;
+
+        Entry(final String member, final MetricFeedBundle mfb) {
+            this.member = member;
+            this.mfb = mfb;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on-disk spool for metric payloads the agent could not take, replayed
+ * in order once it is reachable again.
+ *
+ * Payloads are appended to a ring of fixed-size, memory-mapped segment
+ * files in a directory.  Each segment starts with its write and read
+ * positions, followed by length-prefixed payloads, so a restarted
+ * collector picks up where the last one left off.  When the spool reaches
+ * its size cap the oldest segment is dropped.  Nothing is written here
+ * while delivery succeeds, but while the spool holds payloads new ones are
+ * appended behind them (see {@link #appendIfPending}) so the agent gets
+ * them in order.  Replay is throttled for the backlog only: those new
+ * payloads are replayed on top of the throttled amount, so the spool still
+ * empties when they come in faster than the replay rate.
+ */
+public class DeliverySpool {
+
+    /** Sends one spooled payload (metricFeed JSON) to the agent. */
+    public interface Sender {
+        void send(byte[] b, int off, int len) throws Exception;
+    }
+
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".dat";
+    // write position, read position
+    private static final int HEADER = 8;
+    private static final int MIN_SEGMENT = 1 << 20;
+    // a spool smaller than this can't hold two segments of useful size
+    private static final long MIN_BYTES = 128 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Logger logger;
+
+    // oldest first; the last one is written to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final Scratch scratch = new Scratch();
+    private byte[] replayBuf = new byte[8192];
+    private long nextSeq;
+    // payloads added by appendIfPending since the last replay
+    private int appendedLive;
+
+    private final AtomicLong spooled = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public DeliverySpool(
+        final File dir,
+        final long maxBytes,
+        final Logger l
+    ) throws IOException {
+        if (maxBytes < MIN_BYTES) {
+            throw new IllegalArgumentException(
+                "spool size must be at least " + MIN_BYTES + " bytes: "
+                + maxBytes);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create spool directory " + dir);
+        }
+        this.dir = dir;
+        // eight segments, but no smaller than MIN_SEGMENT unless that would
+        // leave fewer than two within maxBytes
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE,
+            Math.min(maxBytes / 2, Math.max(MIN_SEGMENT, maxBytes / 8)));
+        this.maxSegments = (int) (maxBytes / segmentSize);
+        this.logger = l;
+        open();
+    }
+
+    /**
+     * Serializes a bundle and appends it to the spool.
+     */
+    public synchronized void append(
+        final MetricFeedBundle mfb
+    ) throws IOException {
+        scratch.reset();
+        new MetricFeedWriter(scratch).write(mfb);
+        append(scratch.buffer(), 0, scratch.size());
+    }
+
+    /**
+     * Appends a bundle to the spool if payloads are still waiting to be
+     * replayed, so it isn't delivered ahead of them.
+     *
+     * @return whether the bundle was spooled
+     */
+    public synchronized boolean appendIfPending(
+        final MetricFeedBundle mfb
+    ) throws IOException {
+        if (firstUnread() == null) {
+            return false;
+        }
+        append(mfb);
+        appendedLive++;
+        return true;
+    }
+
+    /**
+     * Appends one payload to the spool.
+     */
+    public synchronized void append(
+        final byte[] b,
+        final int off,
+        final int len
+    ) throws IOException {
+        if (len + 4 > segmentSize - HEADER) {
+            logger.log(Level.WARNING,
+                "Metric payload of {0} bytes is too large to spool", len);
+            dropped.incrementAndGet();
+            return;
+        }
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePos() + 4 + len > tail.buf.capacity()) {
+            if (segments.size() == maxSegments) {
+                dropOldest();
+            }
+            tail = newSegment();
+        }
+        final int pos = tail.writePos();
+        tail.buf.position(pos + 4);
+        tail.buf.put(b, off, len);
+        tail.buf.putInt(pos, len);
+        // publish the record only once it is complete
+        tail.buf.putInt(0, pos + 4 + len);
+        spooled.incrementAndGet();
+    }
+
+    /**
+     * Sends up to max spooled payloads, plus one for every payload added by
+     * {@link #appendIfPending} since the last call, oldest first, stopping
+     * at the first one that fails; it stays in the spool for the next
+     * attempt.
+     *
+     * @return the number of payloads sent
+     */
+    public int replay(final int max, final Sender sender) {
+        // only ever called from one thread; appends can go on meanwhile
+        final long budget;
+        synchronized (this) {
+            budget = (long) max + appendedLive;
+            appendedLive = 0;
+        }
+        int sent = 0;
+        while (sent < budget) {
+            final Segment head;
+            final int pos;
+            final int len;
+            synchronized (this) {
+                head = firstUnread();
+                if (head == null) {
+                    break;
+                }
+                pos = head.readPos();
+                len = head.buf.getInt(pos);
+                if (replayBuf.length < len) {
+                    replayBuf = new byte[Math.max(len, replayBuf.length * 2)];
+                }
+                head.buf.position(pos + 4);
+                head.buf.get(replayBuf, 0, len);
+            }
+            try {
+                sender.send(replayBuf, 0, len);
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Replay of spooled metrics failed: {0}",
+                    e);
+                break;
+            }
+            synchronized (this) {
+                // unless the segment was dropped while we were sending
+                if (segments.peekFirst() == head) {
+                    head.buf.putInt(4, pos + 4 + len);
+                }
+            }
+            replayed.incrementAndGet();
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Returns whether there are payloads waiting to be replayed.
+     */
+    public synchronized boolean isEmpty() {
+        return firstUnread() == null;
+    }
+
+    /**
+     * Returns the number of spooled bytes not yet replayed.
+     */
+    public synchronized long pendingBytes() {
+        long n = 0;
+        for (Segment s : segments) {
+            n += s.writePos() - s.readPos();
+        }
+        return n;
+    }
+
+    /**
+     * Adds the number of payloads spooled, replayed and dropped since the
+     * last call, and the bytes waiting, to a bundle of self-metrics.
+     */
+    public void addSelfMetrics(
+        final MetricFeedBundle selfMetrics,
+        final String base
+    ) {
+        selfMetrics.addMetric("PerIntervalCounter", base + ":Spooled",
+            String.valueOf(spooled.getAndSet(0)));
+        selfMetrics.addMetric("PerIntervalCounter", base + ":Replayed",
+            String.valueOf(replayed.getAndSet(0)));
+        selfMetrics.addMetric("PerIntervalCounter", base + ":Dropped",
+            String.valueOf(dropped.getAndSet(0)));
+        selfMetrics.addMetric("LongCounter", base + ":Pending Bytes",
+            String.valueOf(pendingBytes()));
+    }
+
+    /**
+     * Forces the spooled payloads out to disk.
+     */
+    public synchronized void close() {
+        for (Segment s : segments) {
+            s.buf.force();
+        }
+        segments.clear();
+    }
+
+    // the oldest segment with something left to read, deleting the fully
+    // read segments before it
+    private Segment firstUnread() {
+        Segment head = segments.peekFirst();
+        while (head != null && head.readPos() >= head.writePos()) {
+            if (head == segments.peekLast()) {
+                return null;
+            }
+            segments.pollFirst();
+            delete(head);
+            head = segments.peekFirst();
+        }
+        return head;
+    }
+
+    private void dropOldest() {
+        final Segment s = segments.pollFirst();
+        int lost = 0;
+        for (int pos = s.readPos(); pos < s.writePos();
+                pos += 4 + s.buf.getInt(pos)) {
+            lost++;
+        }
+        logger.log(Level.WARNING,
+            "Spool is full, dropping {0} metric payloads", lost);
+        dropped.addAndGet(lost);
+        delete(s);
+    }
+
+    private void open() throws IOException {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(final File d, final String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        final long[] seqs = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < seqs.length; i++) {
+            final String name = files[i].getName();
+            try {
+                seqs[i] = Long.parseLong(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+            } catch (NumberFormatException nfe) {
+                seqs[i] = -1;
+            }
+        }
+        Arrays.sort(seqs);
+        for (long seq : seqs) {
+            if (seq < 0) {
+                continue;
+            }
+            final File f = segmentFile(seq);
+            if (f.length() < HEADER) {
+                f.delete();
+                continue;
+            }
+            final Segment s = new Segment(f, map(f, (int) f.length()));
+            if (s.writePos() < HEADER || s.writePos() > s.buf.capacity()
+                || s.readPos() < HEADER || s.readPos() > s.writePos()) {
+                logger.log(Level.WARNING, "Discarding corrupt spool file {0}",
+                    f);
+                delete(s);
+                continue;
+            }
+            segments.add(s);
+            nextSeq = seq + 1;
+        }
+        if (!segments.isEmpty()) {
+            logger.log(Level.INFO,
+                "Found {0} bytes of spooled metrics in {1}",
+                new Object[] {pendingBytes(), dir});
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        final File f = segmentFile(nextSeq++);
+        final Segment s = new Segment(f, map(f, segmentSize));
+        s.buf.putInt(0, HEADER);
+        s.buf.putInt(4, HEADER);
+        segments.add(s);
+        return s;
+    }
+
+    private File segmentFile(final long seq) {
+        return new File(dir, String.format("%s%016d%s", PREFIX, seq, SUFFIX));
+    }
+
+    private static MappedByteBuffer map(
+        final File f,
+        final int size
+    ) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void delete(final Segment s) {
+        if (!s.file.delete()) {
+            logger.log(Level.FINE, "Can''t delete spool file {0}", s.file);
+        }
+    }
+
+    // reused serialization buffer, read without copying
+    private static final class Scratch extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buf;
+
+        Segment(final File file, final MappedByteBuffer buf) {
+            this.file = file;
+            this.buf = buf;
+        }
+
+        int writePos() {
+            return buf.getInt(0);
+        }
+
+        int readPos() {
+            return buf.getInt(4);
+        }
+    }
+}
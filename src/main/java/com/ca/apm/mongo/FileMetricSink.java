@@ -0,0 +1,147 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+package com.ca.apm.mongo;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Appends every bundle to a local file as one line of metricFeed JSON
+ * (newline-delimited JSON).  Each line is exactly what the http sink would
+ * post, so it can be replayed to an agent later.
+ *
+ * When the file grows past its size limit it is rotated like a log file:
+ * metrics.ndjson becomes metrics.ndjson.1, metrics.ndjson.1 becomes
+ * metrics.ndjson.2, and so on, keeping the given number of old files.
+ */
+public class FileMetricSink implements MetricSink {
+
+    private final File file;
+    private final long maxBytes;
+    private final int keep;
+    private final Logger logger;
+
+    private CountingStream out;
+
+    public FileMetricSink(
+        final File file,
+        final long maxBytes,
+        final int keep,
+        final Logger l
+    ) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.keep = keep;
+        this.logger = l;
+    }
+
+    public synchronized void send(
+        final MetricFeedBundle mfb
+    ) throws Exception {
+        if (out == null) {
+            open();
+        } else if (maxBytes > 0 && out.count >= maxBytes) {
+            rotate();
+        }
+        new MetricFeedWriter(out).write(mfb);
+        out.write('\n');
+        out.flush();
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Exception closing {0}: {1}",
+                new Object[] {file, ex});
+        }
+        out = null;
+    }
+
+    private void open() throws IOException {
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+        out = new CountingStream(new BufferedOutputStream(
+            new FileOutputStream(file, true), 8192), file.length());
+    }
+
+    private void rotate() throws IOException {
+        close();
+        new File(file.getPath() + "." + keep).delete();
+        for (int i = keep - 1; i >= 1; i--) {
+            final File f = new File(file.getPath() + "." + i);
+            if (f.exists()) {
+                f.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (keep > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        logger.log(Level.INFO, "Rotated metrics file {0}", file);
+        open();
+    }
+
+    private static final class CountingStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingStream(final OutputStream out, final long count) {
+            this.out = out;
+            this.count = count;
+        }
+
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(
+            final byte[] b,
+            final int off,
+            final int len
+        ) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from non-negative int keys (metric path ids)
+ * to long values, without boxing.  Not thread-safe.
+ */
+public class IntLongMap {
+
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private long[] vals;
+    private int size;
+
+    public IntLongMap() {
+        this(64);
+    }
+
+    public IntLongMap(final int expected) {
+        int cap = 16;
+        while (cap < expected * 2) {
+            cap <<= 1;
+        }
+        keys = new int[cap];
+        vals = new long[cap];
+        Arrays.fill(keys, FREE);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(final int key) {
+        return keys[slot(key)] == key;
+    }
+
+    /**
+     * Returns the value for key, or dflt if there is none.
+     */
+    public long get(final int key, final long dflt) {
+        final int s = slot(key);
+        return keys[s] == key ? vals[s] : dflt;
+    }
+
+    public void put(final int key, final long val) {
+        if (key < 0) {
+            throw new IllegalArgumentException("negative key: " + key);
+        }
+        int s = slot(key);
+        if (keys[s] != key) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                s = slot(key);
+            }
+            keys[s] = key;
+            size++;
+        }
+        vals[s] = val;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    // the slot holding key, or the free slot where it would go
+    private int slot(final int key) {
+        final int mask = keys.length - 1;
+        final int h = key * 0x9E3779B9;
+        int s = (h ^ (h >>> 16)) & mask;
+        while (keys[s] != FREE && keys[s] != key) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    private void grow() {
+        final int[] oldKeys = keys;
+        final long[] oldVals = vals;
+        keys = new int[oldKeys.length * 2];
+        vals = new long[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                final int s = slot(oldKeys[i]);
+                keys[s] = oldKeys[i];
+                vals[s] = oldVals[i];
+            }
+        }
+    }
+}
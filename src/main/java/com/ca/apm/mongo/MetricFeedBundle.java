@@ -22,22 +22,135 @@
 package com.ca.apm.mongo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import com.google.gson.Gson;
 
+/**
+ * The metrics of one metricFeed request, stored column-wise: a type code,
+ * a path id (see {@link MetricPathRegistry}) and a long value per metric,
+ * plus a String only for metrics whose value is text.  Numbers are turned
+ * into text when the bundle is written (see {@link MetricFeedWriter}).
+ */
 public class MetricFeedBundle {
-    private List<MetricInfo> metrics;
+
+    public static final byte INT_COUNTER = 0;
+    public static final byte LONG_COUNTER = 1;
+    public static final byte STRING_EVENT = 2;
+    public static final byte TIMESTAMP = 3;
+    public static final byte INT_AVERAGE = 4;
+    public static final byte INT_RATE = 5;
+    public static final byte LONG_AVERAGE = 6;
+    public static final byte PER_INTERVAL_COUNTER = 7;
+
+    // the EPAgent metric types, indexed by type code
+    private static final String[] TYPE_NAMES = {
+        "IntCounter", "LongCounter", "StringEvent", "TimeStamp",
+        "IntAverage", "IntRate", "LongAverage", "PerIntervalCounter"
+    };
+
+    private final MetricPathRegistry paths;
+    private int size;
+    private byte[] types;
+    private int[] pathIds;
+    private long[] values;
+    // allocated on the first text value
+    private String[] strings;
 
     public MetricFeedBundle() {
+        this(new MetricPathRegistry());
+    }
+
+    /**
+     * A bundle whose metrics can be added by path id.
+     */
+    public MetricFeedBundle(final MetricPathRegistry paths) {
+        this.paths = paths;
     }
 
+    /**
+     * Returns the metrics as MetricInfo objects, or null if there are none.
+     * This builds a new list on each call.
+     */
     public List<MetricInfo> getMetrics() {
+        if (size == 0) {
+            return null;
+        }
+        final List<MetricInfo> metrics = new ArrayList<MetricInfo>(size);
+        for (int i = 0; i < size; i++) {
+            final String name = paths.getPath(pathIds[i]);
+            if (name != null) {
+                metrics.add(new MetricInfo(getTypeName(i), name, getValue(i),
+                    pathIds[i]));
+            }
+        }
         return metrics;
     }
 
+    public MetricPathRegistry getPathRegistry() {
+        return paths;
+    }
+
     public String toString() {
-        return new Gson().toJson(this);
+        return new Gson().toJson(new Feed(getMetrics()));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte getType(final int i) {
+        return types[i];
+    }
+
+    public String getTypeName(final int i) {
+        return typeName(types[i]);
+    }
+
+    public int getPathId(final int i) {
+        return pathIds[i];
+    }
+
+    /**
+     * Whether the i-th value is text rather than a number.
+     */
+    public boolean isText(final int i) {
+        return strings != null && strings[i] != null;
+    }
+
+    public long getLong(final int i) {
+        return values[i];
+    }
+
+    public String getString(final int i) {
+        return strings == null ? null : strings[i];
+    }
+
+    /**
+     * The i-th value as text.
+     */
+    public String getValue(final int i) {
+        return isText(i) ? strings[i] : String.valueOf(values[i]);
+    }
+
+    public static String typeName(final byte type) {
+        return TYPE_NAMES[type];
+    }
+
+    /**
+     * Returns the code of an EPAgent metric type name.
+     *
+     * @throws IllegalArgumentException if the name is not a metric type
+     */
+    public static byte typeCode(final String type) {
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            if (TYPE_NAMES[i].equals(type)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown metric type: " + type);
     }
 
     public void addMetric(
@@ -45,16 +158,209 @@ public class MetricFeedBundle {
         final String mname,
         final String mvalue
     ) {
-        if (metrics == null) {
-            metrics = new ArrayList<MetricInfo>();
+        addMetric(mtype, paths.intern(mname), mvalue);
+    }
+
+    /**
+     * Adds a metric whose name is a path of this bundle's registry.
+     */
+    public void addMetric(
+        final String mtype,
+        final int pathId,
+        final String mvalue
+    ) {
+        final byte type = typeCode(mtype);
+        if (type != STRING_EVENT && mvalue != null) {
+            try {
+                add(type, pathId, Long.parseLong(mvalue), null);
+                return;
+            } catch (NumberFormatException nfe) {
+                // keep it as text
+            }
+        }
+        add(type, pathId, 0, mvalue == null ? "" : mvalue);
+    }
+
+    public void addLong(final byte type, final int pathId, final long value) {
+        add(type, pathId, value, null);
+    }
+
+    public void addString(final int pathId, final String value) {
+        add(STRING_EVENT, pathId, 0, value);
+    }
+
+    private void add(
+        final byte type,
+        final int pathId,
+        final long value,
+        final String str
+    ) {
+        if (pathId == MetricPathRegistry.NO_PATH) {
+            // below a path that has been removed from the registry
+            return;
+        }
+        ensureCapacity(size + 1);
+        types[size] = type;
+        pathIds[size] = pathId;
+        values[size] = value;
+        if (str != null) {
+            if (strings == null) {
+                strings = new String[types.length];
+            }
+            strings[size] = str;
+        }
+        size++;
+    }
+
+    private void ensureCapacity(final int n) {
+        if (types != null && n <= types.length) {
+            return;
+        }
+        final int cap = Math.max(n, types == null ? 64 : types.length * 2);
+        types = types == null ? new byte[cap] : Arrays.copyOf(types, cap);
+        pathIds = pathIds == null ? new int[cap] : Arrays.copyOf(pathIds, cap);
+        values = values == null ? new long[cap] : Arrays.copyOf(values, cap);
+        if (strings != null) {
+            strings = Arrays.copyOf(strings, cap);
+        }
+    }
+
+    /**
+     * Appends all metrics of another bundle to this one.
+     */
+    public void addAll(final MetricFeedBundle other) {
+        addRange(other, 0, other.size);
+    }
+
+    private void addRange(
+        final MetricFeedBundle other,
+        final int from,
+        final int to
+    ) {
+        final int n = to - from;
+        if (n <= 0) {
+            return;
+        }
+        if (other.paths != paths) {
+            // path ids only mean something in their own registry
+            for (int i = from; i < to; i++) {
+                final String name = other.paths.getPath(other.pathIds[i]);
+                if (name != null) {
+                    add(other.types[i], paths.intern(name), other.values[i],
+                        other.getString(i));
+                }
+            }
+            return;
+        }
+        ensureCapacity(size + n);
+        System.arraycopy(other.types, from, types, size, n);
+        System.arraycopy(other.pathIds, from, pathIds, size, n);
+        System.arraycopy(other.values, from, values, size, n);
+        if (other.strings != null) {
+            if (strings == null) {
+                strings = new String[types.length];
+            }
+            System.arraycopy(other.strings, from, strings, size, n);
+        } else if (strings != null) {
+            Arrays.fill(strings, size, size + n, null);
+        }
+        size += n;
+    }
+
+    /**
+     * Drops every metric from index n on.
+     */
+    public void truncate(final int n) {
+        if (n >= size) {
+            return;
+        }
+        if (strings != null) {
+            Arrays.fill(strings, n, size, null);
+        }
+        size = Math.max(n, 0);
+    }
+
+    /**
+     * Keeps only the metrics whose index is set in keep, preserving their
+     * order.
+     */
+    public void retain(final BitSet keep) {
+        int j = 0;
+        for (int i = keep.nextSetBit(0); i >= 0 && i < size;
+                i = keep.nextSetBit(i + 1)) {
+            types[j] = types[i];
+            pathIds[j] = pathIds[i];
+            values[j] = values[i];
+            if (strings != null) {
+                strings[j] = strings[i];
+            }
+            j++;
+        }
+        if (strings != null) {
+            Arrays.fill(strings, j, size, null);
+        }
+        size = j;
+    }
+
+    /**
+     * Splits this bundle into bundles of at most maxMetrics metrics each,
+     * in order.  A maxMetrics of 0 or less means no limit.
+     */
+    public List<MetricFeedBundle> partition(final int maxMetrics) {
+        final List<MetricFeedBundle> parts = new ArrayList<MetricFeedBundle>();
+        final int step = maxMetrics > 0 ? maxMetrics : Math.max(size, 1);
+        for (int i = 0; i < size; i += step) {
+            final MetricFeedBundle part = new MetricFeedBundle(paths);
+            part.addRange(this, i, Math.min(size, i + step));
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Splits this bundle into bundles whose metricFeed JSON is at most
+     * maxBytes long, in order.  A metric too large on its own gets a
+     * bundle to itself.
+     */
+    public List<MetricFeedBundle> partitionBySize(final int maxBytes) {
+        final List<MetricFeedBundle> parts = new ArrayList<MetricFeedBundle>();
+        int start = 0;
+        int bytes = MetricFeedWriter.ENVELOPE_SIZE;
+        for (int i = 0; i < size; i++) {
+            final int n = MetricFeedWriter.metricSize(this, i);
+            if (i > start && bytes + 1 + n > maxBytes) {
+                final MetricFeedBundle part = new MetricFeedBundle(paths);
+                part.addRange(this, start, i);
+                parts.add(part);
+                start = i;
+                bytes = MetricFeedWriter.ENVELOPE_SIZE;
+            }
+            bytes += (i > start ? 1 : 0) + n;
+        }
+        if (start < size) {
+            final MetricFeedBundle part = new MetricFeedBundle(paths);
+            part.addRange(this, start, size);
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * The metricFeed document as serialized by Gson.
+     */
+    private static class Feed {
+        private List<MetricInfo> metrics;
+
+        Feed(final List<MetricInfo> metrics) {
+            this.metrics = metrics;
         }
-        metrics.add(new MetricInfo(mtype, mname, mvalue));
     }
 
     public static class MetricInfo {
         private String type;
         private String name;
         private String value;
+        private transient int pathId = MetricPathRegistry.NO_PATH;
 
         public MetricInfo() {
         }
@@ -69,6 +375,16 @@ public class MetricFeedBundle {
             value = invalue;
         }
 
+        MetricInfo(
+            final String intype,
+            final String inname,
+            final String invalue,
+            final int inpathId
+        ) {
+            this(intype, inname, invalue);
+            pathId = inpathId;
+        }
+
         public String getType() {
             return type;
         }
@@ -80,5 +396,9 @@ public class MetricFeedBundle {
         public String getValue() {
             return value;
         }
+
+        public int getPathId() {
+            return pathId;
+        }
     }
-}
\ No newline at end of file
+}
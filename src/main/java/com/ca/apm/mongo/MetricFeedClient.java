@@ -0,0 +1,193 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Posts metric payloads to the APM agent's metricFeed endpoint.
+ *
+ * Connections are kept alive and reused between requests: the JDK pools
+ * an HTTP connection once its response has been read to the end, so every
+ * response body, success or error, is drained before the stream is
+ * closed.  Connect and read timeouts bound how long a request can wait on
+ * the agent.  Request bodies can optionally be gzip compressed, for agents
+ * that accept a Content-Encoding of gzip.
+ */
+public class MetricFeedClient implements MetricSink {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final URL url;
+    private final int timeoutMillis;
+    private final boolean gzip;
+    private final Logger logger;
+
+    public MetricFeedClient(
+        final URL url,
+        final int timeoutMillis,
+        final boolean gzip,
+        final Logger l
+    ) {
+        this.url = url;
+        this.timeoutMillis = timeoutMillis;
+        this.gzip = gzip;
+        this.logger = l;
+    }
+
+    /**
+     * Posts a bundle, streaming its JSON as it is written instead of
+     * building it in memory.
+     *
+     * @throws IOException if the agent can't be reached or can't take the
+     *                     metrics right now (a server error)
+     */
+    public void send(final MetricFeedBundle mfb) throws Exception {
+        final HttpURLConnection conn = open();
+        conn.setChunkedStreamingMode(CHUNK_SIZE);
+        final OutputStream os = body(conn);
+        try {
+            new MetricFeedWriter(os, CHUNK_SIZE).write(mfb);
+        } finally {
+            os.close();
+        }
+        checkResponse(conn);
+    }
+
+    /**
+     * Posts an already serialized metricFeed payload.
+     *
+     * @throws IOException as for {@link #send(MetricFeedBundle)}
+     */
+    public void send(
+        final byte[] b,
+        final int off,
+        final int len
+    ) throws Exception {
+        final HttpURLConnection conn = open();
+        if (gzip) {
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+        } else {
+            conn.setFixedLengthStreamingMode(len);
+        }
+        final OutputStream os = body(conn);
+        try {
+            os.write(b, off, len);
+        } finally {
+            os.close();
+        }
+        checkResponse(conn);
+    }
+
+    /**
+     * Nothing to release; idle keep-alive connections are closed by the
+     * JDK.
+     */
+    public void close() {
+    }
+
+    private HttpURLConnection open() throws IOException {
+        final HttpURLConnection conn =
+            (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        conn.setRequestProperty("Content-Type", "application/json");
+        if (gzip) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+        return conn;
+    }
+
+    private OutputStream body(
+        final HttpURLConnection conn
+    ) throws IOException {
+        final OutputStream os = conn.getOutputStream();
+        return gzip ? new GZIPOutputStream(os, CHUNK_SIZE) : os;
+    }
+
+    /**
+     * Logs the agent's answer.  A server error means the agent could not
+     * take the metrics right now, and is thrown as an IOException like a
+     * failure to connect.
+     */
+    private void checkResponse(
+        final HttpURLConnection conn
+    ) throws Exception {
+        final int rc = conn.getResponseCode();
+        if (rc == 200) {
+            drain(conn.getInputStream());
+            logger.log(Level.INFO, "Successful metric delivery");
+            return;
+        }
+        final String payload = getPayload(conn.getErrorStream());
+        if (rc >= 500) {
+            throw new IOException(String.format(
+                "Error code: %d, payload: %s", rc, payload));
+        }
+        logger.log(Level.SEVERE, "Error code: {0}, payload: {1}",
+            new Object[] {rc, payload});
+    }
+
+    // read to the end so the connection goes back to the keep-alive pool
+    private static void drain(final InputStream is) throws IOException {
+        if (is == null) {
+            return;
+        }
+        final byte[] skip = new byte[256];
+        try {
+            while (is.read(skip) >= 0) {
+                // discard
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private static String getPayload(
+        final InputStream is
+    ) throws Exception {
+        if (is == null) {
+            return "";
+        }
+        BufferedReader rdr = new BufferedReader(
+            new InputStreamReader(is));
+        String line;
+        StringBuilder sb = new StringBuilder();
+        while ((line = rdr.readLine()) != null) {
+            sb.append(String.format("%s%n", line));
+        }
+        rdr.close();
+        return sb.toString();
+    }
+}
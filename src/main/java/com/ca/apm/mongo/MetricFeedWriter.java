@@ -0,0 +1,333 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a MetricFeedBundle as metricFeed JSON
+ * ({"metrics":[{"type":..,"name":..,"value":..},...]}) directly to an
+ * OutputStream.  Characters are escaped and UTF-8 encoded straight into a
+ * small reusable buffer, so no intermediate String or byte[] of the whole
+ * payload is built.
+ */
+public class MetricFeedWriter {
+
+    /** Bytes of JSON around the metrics: {"metrics":[ and ]}. */
+    public static final int ENVELOPE_SIZE = 14;
+
+    private static final byte[] HEX = {
+        '0', '1', '2', '3', '4', '5', '6', '7',
+        '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+
+    // encoded type names, indexed by type code
+    private static final byte[][] TYPE_JSON =
+        new byte[MetricFeedBundle.PER_INTERVAL_COUNTER + 1][];
+
+    static {
+        for (int i = 0; i < TYPE_JSON.length; i++) {
+            TYPE_JSON[i] = quote(MetricFeedBundle.typeName((byte) i));
+        }
+    }
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int pos;
+
+    public MetricFeedWriter(final OutputStream out) {
+        this(out, 8192);
+    }
+
+    public MetricFeedWriter(final OutputStream out, final int bufferSize) {
+        this.out = out;
+        // room for the longest escape sequence or number
+        this.buf = new byte[Math.max(bufferSize, 32)];
+    }
+
+    /**
+     * Writes the bundle and flushes it to the underlying stream.  The
+     * stream is not closed.  Metrics whose path has been removed from the
+     * registry are left out.
+     */
+    public void write(final MetricFeedBundle mfb) throws IOException {
+        writeAscii("{\"metrics\":[");
+        final MetricPathRegistry paths = mfb.getPathRegistry();
+        final int n = mfb.size();
+        boolean first = true;
+        for (int i = 0; i < n; i++) {
+            final byte[] name = paths.getJson(mfb.getPathId(i));
+            if (name == null) {
+                continue;
+            }
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeAscii("{\"type\":");
+            writeRaw(typeJson(mfb.getType(i)));
+            writeAscii(",\"name\":");
+            writeRaw(name);
+            writeAscii(",\"value\":");
+            if (mfb.isText(i)) {
+                writeString(mfb.getString(i));
+            } else {
+                writeByte('"');
+                writeLong(mfb.getLong(i));
+                writeByte('"');
+            }
+            writeByte('}');
+        }
+        writeAscii("]}");
+        flush();
+    }
+
+    /**
+     * Returns a string as a quoted, escaped, UTF-8 encoded JSON string.
+     */
+    public static byte[] quote(final String s) {
+        final ByteArrayOutputStream bos =
+            new ByteArrayOutputStream(s.length() + 2);
+        final MetricFeedWriter w = new MetricFeedWriter(bos, 64);
+        try {
+            w.writeString(s);
+            w.flush();
+        } catch (IOException ex) {
+            // can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Returns the number of bytes metric i of a bundle takes when written,
+     * not counting the comma before it.
+     */
+    public static int metricSize(final MetricFeedBundle mfb, final int i) {
+        final byte[] name = mfb.getPathRegistry().getJson(mfb.getPathId(i));
+        if (name == null) {
+            // removed from the registry; not written
+            return 0;
+        }
+        // {"type":..,"name":..,"value":..}
+        int n = 8 + typeJson(mfb.getType(i)).length
+            + 8 + name.length
+            + 9 + 1;
+        if (mfb.isText(i)) {
+            n += stringSize(mfb.getString(i));
+        } else {
+            n += 2 + digits(mfb.getLong(i));
+        }
+        return n;
+    }
+
+    // bytes writeString writes for s
+    private static int stringSize(final String s) {
+        if (s == null) {
+            return 4;
+        }
+        int n = 2;
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                n += c == '"' || c == '\\' ? 2 : 1;
+            } else if (c < 0x20) {
+                n += c == '\b' || c == '\f' || c == '\n' || c == '\r'
+                    || c == '\t' ? 2 : 6;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (c == '\u2028' || c == '\u2029') {
+                n += 6;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+                n += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                n += 6;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    private static int digits(final long v) {
+        if (v == Long.MIN_VALUE) {
+            return 20;
+        }
+        int n = v < 0 ? 2 : 1;
+        for (long x = Math.abs(v); x >= 10; x /= 10) {
+            n++;
+        }
+        return n;
+    }
+
+    public void flush() throws IOException {
+        if (pos > 0) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+        out.flush();
+    }
+
+    private void writeString(final String s) throws IOException {
+        if (s == null) {
+            writeAscii("null");
+            return;
+        }
+        writeByte('"');
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (pos + 12 > buf.length) {
+                drain();
+            }
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    buf[pos++] = '\\';
+                }
+                buf[pos++] = (byte) c;
+            } else if (c < 0x20) {
+                writeControl(c);
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (c == '\u2028' || c == '\u2029') {
+                // legal in JSON but not in JavaScript string literals
+                writeUnicodeEscape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < len
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate can't be UTF-8 encoded
+                writeUnicodeEscape(c);
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeControl(final char c) {
+        buf[pos++] = '\\';
+        switch (c) {
+        case '\b':
+            buf[pos++] = 'b';
+            break;
+        case '\f':
+            buf[pos++] = 'f';
+            break;
+        case '\n':
+            buf[pos++] = 'n';
+            break;
+        case '\r':
+            buf[pos++] = 'r';
+            break;
+        case '\t':
+            buf[pos++] = 't';
+            break;
+        default:
+            pos--;
+            writeUnicodeEscape(c);
+        }
+    }
+
+    private void writeUnicodeEscape(final char c) {
+        buf[pos++] = '\\';
+        buf[pos++] = 'u';
+        buf[pos++] = HEX[(c >> 12) & 0xf];
+        buf[pos++] = HEX[(c >> 8) & 0xf];
+        buf[pos++] = HEX[(c >> 4) & 0xf];
+        buf[pos++] = HEX[c & 0xf];
+    }
+
+    private static byte[] typeJson(final byte type) {
+        return TYPE_JSON[type];
+    }
+
+    private void writeLong(final long v) throws IOException {
+        if (v == Long.MIN_VALUE) {
+            writeAscii(String.valueOf(v));
+            return;
+        }
+        if (pos + 20 > buf.length) {
+            drain();
+        }
+        long x = v;
+        if (x < 0) {
+            buf[pos++] = '-';
+            x = -x;
+        }
+        // write the digits backwards, then reverse them in place
+        final int start = pos;
+        do {
+            buf[pos++] = (byte) ('0' + (x % 10));
+            x /= 10;
+        } while (x != 0);
+        for (int i = start, j = pos - 1; i < j; i++, j--) {
+            final byte t = buf[i];
+            buf[i] = buf[j];
+            buf[j] = t;
+        }
+    }
+
+    private void writeRaw(final byte[] b) throws IOException {
+        if (b.length > buf.length - pos) {
+            drain();
+            if (b.length > buf.length) {
+                out.write(b);
+                return;
+            }
+        }
+        System.arraycopy(b, 0, buf, pos, b.length);
+        pos += b.length;
+    }
+
+    private void writeAscii(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeByte(final int b) throws IOException {
+        if (pos == buf.length) {
+            drain();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        out.write(buf, 0, pos);
+        pos = 0;
+    }
+}
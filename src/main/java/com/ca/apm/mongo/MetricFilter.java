@@ -0,0 +1,250 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Include and exclude rules for serverStatus paths.
+ *
+ * Rules are globs over the raw keys of a path below the server, with "|"
+ * (or ":") between keys, e.g. "wiredTiger", "metrics|commands|*" or
+ * "**|latency*".  Within a key "*" matches any characters and "?" a
+ * single one; a key of "**" matches any number of keys.  A rule that
+ * matches an element matches everything below it.
+ *
+ * A metric is kept if no include rule is given or it matches one, and it
+ * matches no exclude rule.  The rules are compiled into an automaton whose
+ * states are built lazily and cached per key, so walking a document costs
+ * one map lookup per key, and as soon as nothing below a key can be kept
+ * the walk skips it.
+ */
+public class MetricFilter {
+
+    private static final String ANY_KEYS = "**";
+
+    private final String[][] patterns;
+    private final int includes;
+    // first position of each pattern in the global position numbering
+    private final int[] offsets;
+    private final ConcurrentMap<BitSet, State> states =
+        new ConcurrentHashMap<BitSet, State>();
+    private final State root;
+
+    /**
+     * @param include comma-separated include rules, may be null
+     * @param exclude comma-separated exclude rules, may be null
+     */
+    public MetricFilter(final String include, final String exclude) {
+        final List<String[]> p = new ArrayList<String[]>();
+        parse(include, p);
+        includes = p.size();
+        parse(exclude, p);
+        patterns = p.toArray(new String[p.size()][]);
+        offsets = new int[patterns.length + 1];
+        for (int i = 0; i < patterns.length; i++) {
+            offsets[i + 1] = offsets[i] + patterns[i].length + 1;
+        }
+        final BitSet start = new BitSet();
+        for (int i = 0; i < patterns.length; i++) {
+            addClosure(start, i, 0);
+        }
+        root = state(start);
+    }
+
+    /**
+     * The state for a server's base path.
+     */
+    public State root() {
+        return root;
+    }
+
+    /**
+     * Whether a path, relative to the server and written as in the rules,
+     * is kept.
+     */
+    public boolean accepts(final String path) {
+        State s = root;
+        for (String key : path.split("[|:]")) {
+            s = s.next(key);
+            if (s.isPruned()) {
+                return false;
+            }
+        }
+        return s.isIncluded();
+    }
+
+    /**
+     * A position in the automaton, i.e. the set of rule positions reached
+     * by the keys seen so far.
+     */
+    public final class State {
+        private final BitSet positions;
+        private final boolean excluded;
+        private final boolean included;
+        private final boolean pruned;
+        private final ConcurrentMap<String, State> next =
+            new ConcurrentHashMap<String, State>();
+
+        private State(final BitSet positions) {
+            boolean exc = false;
+            boolean inc = includes == 0;
+            boolean incAlive = false;
+            for (int i = 0; i < patterns.length; i++) {
+                final boolean matched =
+                    positions.get(offsets[i] + patterns[i].length);
+                if (i < includes) {
+                    inc |= matched;
+                    final int p = positions.nextSetBit(offsets[i]);
+                    incAlive |= p >= 0 && p < offsets[i + 1];
+                } else {
+                    exc |= matched;
+                }
+            }
+            this.positions = positions;
+            this.excluded = exc;
+            this.included = inc && !exc;
+            this.pruned = exc || (!inc && !incAlive);
+        }
+
+        /**
+         * The state after the given key.
+         */
+        public State next(final String key) {
+            final State s = next.get(key);
+            if (s != null) {
+                return s;
+            }
+            final State n = step(this, key);
+            next.putIfAbsent(key, n);
+            return n;
+        }
+
+        /**
+         * Nothing at or below this path is kept.
+         */
+        public boolean isPruned() {
+            return pruned;
+        }
+
+        /**
+         * A metric at this path is kept.
+         */
+        public boolean isIncluded() {
+            return included;
+        }
+    }
+
+    private State step(final State from, final String key) {
+        if (from.pruned) {
+            return from;
+        }
+        final BitSet to = new BitSet();
+        for (int i = 0; i < patterns.length; i++) {
+            final String[] pat = patterns[i];
+            final int end = offsets[i] + pat.length;
+            if (from.positions.get(end)) {
+                // matched an ancestor, so matches this too
+                to.set(end);
+                continue;
+            }
+            if (i < includes && from.included) {
+                // already included; only excludes matter from here on
+                continue;
+            }
+            for (int p = from.positions.nextSetBit(offsets[i]);
+                    p >= 0 && p < end;
+                    p = from.positions.nextSetBit(p + 1)) {
+                final String seg = pat[p - offsets[i]];
+                if (ANY_KEYS.equals(seg)) {
+                    addClosure(to, i, p - offsets[i]);
+                } else if (globMatches(seg, key)) {
+                    addClosure(to, i, p - offsets[i] + 1);
+                }
+            }
+        }
+        return state(to);
+    }
+
+    private State state(final BitSet positions) {
+        final State s = states.get(positions);
+        if (s != null) {
+            return s;
+        }
+        final State n = new State(positions);
+        final State prev = states.putIfAbsent(positions, n);
+        return prev == null ? n : prev;
+    }
+
+    // sets position p of pattern i, and the ones "**" lets it skip to
+    private void addClosure(final BitSet set, final int i, final int p) {
+        int q = p;
+        set.set(offsets[i] + q);
+        while (q < patterns[i].length && ANY_KEYS.equals(patterns[i][q])) {
+            set.set(offsets[i] + ++q);
+        }
+    }
+
+    private static void parse(final String rules, final List<String[]> out) {
+        if (rules == null) {
+            return;
+        }
+        for (String r : rules.split(",")) {
+            final String rule = r.trim();
+            if (rule.length() > 0) {
+                out.add(rule.split("\\s*[|:]\\s*"));
+            }
+        }
+    }
+
+    static boolean globMatches(final String glob, final String s) {
+        int g = 0;
+        int i = 0;
+        int star = -1;
+        int mark = 0;
+        while (i < s.length()) {
+            if (g < glob.length()
+                && (glob.charAt(g) == '?' || glob.charAt(g) == s.charAt(i))) {
+                g++;
+                i++;
+            } else if (g < glob.length() && glob.charAt(g) == '*') {
+                star = g++;
+                mark = i;
+            } else if (star >= 0) {
+                g = star + 1;
+                i = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (g < glob.length() && glob.charAt(g) == '*') {
+            g++;
+        }
+        return g == glob.length();
+    }
+}
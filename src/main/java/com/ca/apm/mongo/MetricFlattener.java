@@ -0,0 +1,632 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Flattens a command reply into metrics, either from a decoded
+ * BasicDBObject or straight from the reply's BSON bytes.
+ *
+ * Both produce the same metrics in the same order: documents and arrays
+ * become path elements (array entries named by index) and values become
+ * metrics.  Doubles are reported rounded, plus as a string, since the API
+ * has no floating-point metric type.
+ */
+public class MetricFlattener {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte BSON_DOUBLE = 0x01;
+    private static final byte BSON_STRING = 0x02;
+    private static final byte BSON_DOCUMENT = 0x03;
+    private static final byte BSON_ARRAY = 0x04;
+    private static final byte BSON_BINARY = 0x05;
+    private static final byte BSON_UNDEFINED = 0x06;
+    private static final byte BSON_OBJECT_ID = 0x07;
+    private static final byte BSON_BOOLEAN = 0x08;
+    private static final byte BSON_DATE = 0x09;
+    private static final byte BSON_NULL = 0x0a;
+    private static final byte BSON_REGEX = 0x0b;
+    private static final byte BSON_DB_POINTER = 0x0c;
+    private static final byte BSON_CODE = 0x0d;
+    private static final byte BSON_SYMBOL = 0x0e;
+    private static final byte BSON_CODE_W_SCOPE = 0x0f;
+    private static final byte BSON_INT32 = 0x10;
+    private static final byte BSON_TIMESTAMP = 0x11;
+    private static final byte BSON_INT64 = 0x12;
+    private static final byte BSON_DECIMAL128 = 0x13;
+    private static final byte BSON_MIN_KEY = (byte) 0xff;
+    private static final byte BSON_MAX_KEY = 0x7f;
+
+    private final MetricPathRegistry paths;
+    private final MetricFilter filter;
+    private final Logger logger;
+    private final ConcurrentMap<String, SchemaPlan> plans =
+        new ConcurrentHashMap<String, SchemaPlan>();
+
+    /**
+     * @param filter the metrics to keep, or null for all of them
+     */
+    public MetricFlattener(
+        final MetricPathRegistry paths,
+        final MetricFilter filter,
+        final Logger logger
+    ) {
+        this.paths = paths;
+        this.filter = filter;
+        this.logger = logger;
+    }
+
+    public MetricPathRegistry getPathRegistry() {
+        return paths;
+    }
+
+    public MetricFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Adds the values of a decoded document (without its "ok" field) to
+     * the bundle.
+     */
+    public void flatten(
+        final BasicDBObject bdo,
+        final int basePathId,
+        final MetricFeedBundle mfb
+    ) {
+        makeMetrics(mfb, basePathId, bdo,
+            filter == null ? null : filter.root());
+    }
+
+    /**
+     * Adds the values of a raw BSON command reply to the bundle.  The
+     * reply's "ok" field is not reported.
+     *
+     * @return whether the reply was a successful one; if not, the bundle
+     *         should be discarded
+     */
+    public boolean flattenRaw(
+        final byte[] bson,
+        final int offset,
+        final int basePathId,
+        final MetricFeedBundle mfb
+    ) {
+        return flattenRaw(null, bson, offset, basePathId, mfb);
+    }
+
+    /**
+     * Adds the values of a server's raw BSON command reply to the bundle,
+     * as {@link #flattenRaw(byte[], int, int, MetricFeedBundle)}.
+     *
+     * The layout of the server's last successful reply is kept as a
+     * {@link SchemaPlan}.  While replies keep that layout they are
+     * flattened by reading the values alone, with no keys decoded or
+     * paths looked up; a reply that differs anywhere is walked in full
+     * and becomes the new plan.
+     *
+     * @param member the server's "host:port", or null to not use a plan
+     */
+    public boolean flattenRaw(
+        final String member,
+        final byte[] bson,
+        final int offset,
+        final int basePathId,
+        final MetricFeedBundle mfb
+    ) {
+        final SchemaPlan plan = member == null ? null : plans.get(member);
+        if (plan != null && plan.basePathId == basePathId) {
+            final int mark = mfb.size();
+            final ReplyStatus status = new ReplyStatus();
+            if (replay(plan, bson, offset, mfb, status)) {
+                return checkStatus(status, basePathId);
+            }
+            // the layout changed; start over
+            mfb.truncate(mark);
+        }
+
+        final SchemaPlan built =
+            member == null ? null : new SchemaPlan(basePathId);
+        final ReplyStatus status = new ReplyStatus();
+        walkRaw(bson, offset, basePathId, false,
+            filter == null ? null : filter.root(), mfb, status, built);
+        final boolean ok = checkStatus(status, basePathId);
+        if (ok && built != null) {
+            plans.put(member, built);
+            logger.log(Level.FINE,
+                "New serverStatus layout for {0}: {1} elements, "
+                + "fingerprint {2}", new Object[] {member, built.size(),
+                Long.toHexString(built.fingerprint())});
+        }
+        return ok;
+    }
+
+    /**
+     * Forgets the plans of every server not in the given set.
+     */
+    public void retain(final Collection<String> keep) {
+        final Set<String> k = new HashSet<String>(keep);
+        plans.keySet().retainAll(k);
+    }
+
+    private boolean checkStatus(
+        final ReplyStatus status,
+        final int basePathId
+    ) {
+        if ((int) status.ok == 1 && status.errmsg == null) {
+            return true;
+        }
+        if (status.errmsg != null) {
+            logger.log(Level.WARNING, "Error from mongo command: {0}",
+                status.errmsg);
+        } else {
+            logger.log(Level.WARNING,
+                "Invalid/unexpected mongo command output for {0}",
+                paths.getPath(basePathId));
+        }
+        return false;
+    }
+
+    /**
+     * Flattens a reply by following a plan.  Returns false, possibly after
+     * adding some metrics, as soon as the reply differs from the plan.
+     */
+    private boolean replay(
+        final SchemaPlan plan,
+        final byte[] b,
+        final int offset,
+        final MetricFeedBundle mfb,
+        final ReplyStatus status
+    ) {
+        int p = offset + 4;
+        final int n = plan.size();
+        for (int op = 0; op < n; op++) {
+            if (p >= b.length) {
+                return false;
+            }
+            final byte type = b[p++];
+            if (type != plan.type(op)) {
+                return false;
+            }
+            if (type == 0) {
+                // end of a document
+                continue;
+            }
+            if (!plan.keyMatches(op, b, p)) {
+                return false;
+            }
+            p += plan.keyLength(op) + 1;
+            switch (plan.action(op)) {
+            case SchemaPlan.DESCEND:
+                // the document's elements are next in the plan
+                p += 4;
+                continue;
+            case SchemaPlan.OK:
+                status.ok = readNumber(b, p, type);
+                break;
+            case SchemaPlan.EMIT:
+                emitRaw(b, p, type, plan.id(op), plan.id2(op), mfb);
+                break;
+            default:
+                break;
+            }
+            p = skipValue(b, p, type);
+        }
+        return true;
+    }
+
+    private void makeMetrics(
+        final MetricFeedBundle mfb,
+        final int basePath,
+        final BasicDBObject bdo,
+        final MetricFilter.State state
+    ) {
+        for (String s : bdo.keySet()) {
+            MetricFilter.State next = null;
+            if (state != null) {
+                next = state.next(s);
+                if (next.isPruned()) {
+                    continue;
+                }
+            }
+            final Object o = bdo.get(s);
+            if (o instanceof BasicDBObject) {
+                makeMetrics(mfb, paths.element(basePath, s),
+                    (BasicDBObject)o, next);
+            } else if (o instanceof BasicDBList) {
+                processBasicDBList(mfb, paths.element(basePath, s),
+                    (BasicDBList)o, next);
+            } else if (isKnownDataType(o)) {
+                if (next == null || next.isIncluded()) {
+                    makeMetric(paths.metric(basePath, s), o, mfb);
+                }
+            } else {
+                logger.log(Level.WARNING,
+                    "Unknown type in mongo output for key {0}: {1}",
+                    new Object[] {s, typeName(o)});
+            }
+        }
+    }
+
+    private void processBasicDBList(
+        final MetricFeedBundle mfb,
+        final int basePath,
+        final BasicDBList bdl,
+        final MetricFilter.State state
+    ) {
+        int i = 0;
+        for (Object o : bdl) {
+            final String index = MetricPathRegistry.indexName(i++);
+            MetricFilter.State next = null;
+            if (state != null) {
+                next = state.next(index);
+                if (next.isPruned()) {
+                    continue;
+                }
+            }
+            if (o instanceof BasicDBObject) {
+                makeMetrics(mfb, paths.element(basePath, index),
+                    (BasicDBObject)o, next);
+            } else if (o instanceof BasicDBList) {
+                processBasicDBList(mfb, paths.element(basePath, index),
+                    (BasicDBList)o, next);
+            } else if (isKnownDataType(o)) {
+                if (next == null || next.isIncluded()) {
+                    makeMetric(paths.metric(basePath, index), o, mfb);
+                }
+            } else {
+                logger.log(Level.WARNING,
+                    "Unknown type in mongo output for DBList {0}: {1}",
+                    new Object[] {bdl, typeName(o)});
+            }
+        }
+    }
+
+    private void makeMetric(
+        final int metricPath,
+        final Object dataObj,
+        final MetricFeedBundle mfb
+    ) {
+        if (dataObj instanceof String) {
+            mfb.addString(metricPath, (String)dataObj);
+        } else if (dataObj instanceof Number) {
+            if (dataObj instanceof Double) {
+                addDouble(metricPath, (Double)dataObj, mfb);
+            } else if (dataObj instanceof Long) {
+                mfb.addLong(MetricFeedBundle.LONG_COUNTER, metricPath,
+                    (Long)dataObj);
+            } else if (dataObj instanceof Integer) {
+                mfb.addLong(MetricFeedBundle.INT_COUNTER, metricPath,
+                    (Integer)dataObj);
+            } else {
+                // treat as Integer
+                mfb.addMetric("IntCounter", metricPath, dataObj.toString());
+            }
+        } else if (dataObj instanceof Date) {
+            mfb.addLong(MetricFeedBundle.TIMESTAMP, metricPath,
+                ((Date)dataObj).getTime());
+        } else if (dataObj instanceof Boolean) {
+            mfb.addString(metricPath, dataObj.toString());
+        }
+    }
+
+    private void addDouble(
+        final int metricPath,
+        final double val,
+        final MetricFeedBundle mfb
+    ) {
+        // API doesn't support floating-point metric values
+        // so we round the value to a long, and also create a string
+        // metric to display the value (just for debugging etc.)
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+            paths.suffixed(metricPath, " (rounded)"), Math.round(val));
+        mfb.addString(paths.suffixed(metricPath, " (string)"),
+            Double.toString(val));
+    }
+
+    private static boolean isKnownDataType(final Object dataObj) {
+        return (dataObj instanceof String ||
+            dataObj instanceof Number ||
+            dataObj instanceof Date ||
+            dataObj instanceof Boolean);
+    }
+
+    private static String typeName(final Object o) {
+        return o == null ? "null" : o.getClass().getName();
+    }
+
+    /**
+     * Walks one BSON document or array starting at pos, returning the
+     * position just past it.  If a plan is given, every element is
+     * recorded in it.
+     */
+    private int walkRaw(
+        final byte[] b,
+        final int pos,
+        final int basePath,
+        final boolean isArray,
+        final MetricFilter.State state,
+        final MetricFeedBundle mfb,
+        final ReplyStatus status,
+        final SchemaPlan plan
+    ) {
+        final int end = pos + readInt(b, pos);
+        int p = pos + 4;
+        int index = 0;
+        while (p < end) {
+            final byte type = b[p++];
+            if (type == 0) {
+                break;
+            }
+            final int keyStart = p;
+            while (b[p] != 0) {
+                p++;
+            }
+            final int keyLength = p - keyStart;
+            final String key = isArray
+                ? MetricPathRegistry.indexName(index++)
+                : new String(b, keyStart, keyLength, UTF8);
+            p++;
+            final int valueStart = p;
+            p = skipValue(b, p, type);
+
+            if (status != null && !isArray) {
+                // top level of the reply
+                if ("ok".equals(key)) {
+                    status.ok = readNumber(b, valueStart, type);
+                    record(plan, type, b, keyStart, keyLength,
+                        SchemaPlan.OK, MetricPathRegistry.NO_PATH,
+                        MetricPathRegistry.NO_PATH);
+                    continue;
+                }
+                if ("errmsg".equals(key) && type != BSON_NULL) {
+                    status.errmsg = type == BSON_STRING
+                        ? readString(b, valueStart) : key;
+                }
+            }
+
+            MetricFilter.State next = null;
+            if (state != null) {
+                next = state.next(key);
+                if (next.isPruned()) {
+                    record(plan, type, b, keyStart, keyLength,
+                        SchemaPlan.SKIP, MetricPathRegistry.NO_PATH,
+                        MetricPathRegistry.NO_PATH);
+                    continue;
+                }
+            }
+            if (type == BSON_DOCUMENT || type == BSON_ARRAY) {
+                record(plan, type, b, keyStart, keyLength,
+                    SchemaPlan.DESCEND, MetricPathRegistry.NO_PATH,
+                    MetricPathRegistry.NO_PATH);
+                walkRaw(b, valueStart, paths.element(basePath, key),
+                    type == BSON_ARRAY, next, mfb, null, plan);
+            } else if ((next == null || next.isIncluded())
+                    && isKnownRawType(type)) {
+                final int id = paths.metric(basePath, key);
+                final int metricId = type == BSON_DOUBLE
+                    ? paths.suffixed(id, " (rounded)") : id;
+                final int stringId = type == BSON_DOUBLE
+                    ? paths.suffixed(id, " (string)")
+                    : MetricPathRegistry.NO_PATH;
+                record(plan, type, b, keyStart, keyLength,
+                    SchemaPlan.EMIT, metricId, stringId);
+                emitRaw(b, valueStart, type, metricId, stringId, mfb);
+            } else {
+                if (!isKnownRawType(type)) {
+                    warnRawType(basePath, key, type, isArray);
+                }
+                record(plan, type, b, keyStart, keyLength,
+                    SchemaPlan.SKIP, MetricPathRegistry.NO_PATH,
+                    MetricPathRegistry.NO_PATH);
+            }
+        }
+        if (plan != null) {
+            plan.addEnd();
+        }
+        return end;
+    }
+
+    private static void record(
+        final SchemaPlan plan,
+        final byte type,
+        final byte[] b,
+        final int keyStart,
+        final int keyLength,
+        final byte action,
+        final int id,
+        final int id2
+    ) {
+        if (plan != null) {
+            plan.add(type, b, keyStart, keyLength, action, id, id2);
+        }
+    }
+
+    /**
+     * Adds a value of a known type.  A double becomes two metrics: rounded
+     * (metricId) and as a string (stringId).
+     */
+    private static void emitRaw(
+        final byte[] b,
+        final int pos,
+        final byte type,
+        final int metricId,
+        final int stringId,
+        final MetricFeedBundle mfb
+    ) {
+        switch (type) {
+        case BSON_DOUBLE:
+            final double val = Double.longBitsToDouble(readLong(b, pos));
+            mfb.addLong(MetricFeedBundle.LONG_COUNTER, metricId,
+                Math.round(val));
+            mfb.addString(stringId, Double.toString(val));
+            break;
+        case BSON_STRING:
+        case BSON_SYMBOL:
+            mfb.addString(metricId, readString(b, pos));
+            break;
+        case BSON_INT32:
+            mfb.addLong(MetricFeedBundle.INT_COUNTER, metricId,
+                readInt(b, pos));
+            break;
+        case BSON_INT64:
+            mfb.addLong(MetricFeedBundle.LONG_COUNTER, metricId,
+                readLong(b, pos));
+            break;
+        case BSON_DATE:
+            mfb.addLong(MetricFeedBundle.TIMESTAMP, metricId,
+                readLong(b, pos));
+            break;
+        case BSON_BOOLEAN:
+            mfb.addString(metricId, b[pos] != 0 ? "true" : "false");
+            break;
+        default:
+            break;
+        }
+    }
+
+    private static boolean isKnownRawType(final byte type) {
+        switch (type) {
+        case BSON_DOUBLE:
+        case BSON_STRING:
+        case BSON_SYMBOL:
+        case BSON_INT32:
+        case BSON_INT64:
+        case BSON_DATE:
+        case BSON_BOOLEAN:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void warnRawType(
+        final int basePath,
+        final String key,
+        final byte type,
+        final boolean isArray
+    ) {
+        logger.log(Level.WARNING,
+            isArray ? "Unknown type in mongo output for DBList {0}: {1}"
+                : "Unknown type in mongo output for key {0}: {1}",
+            new Object[] {isArray ? paths.getPath(basePath) : key,
+                String.format("BSON type 0x%02x", type & 0xff)});
+    }
+
+    private static int skipValue(final byte[] b, final int pos, final byte type) {
+        switch (type) {
+        case BSON_DOUBLE:
+        case BSON_DATE:
+        case BSON_TIMESTAMP:
+        case BSON_INT64:
+            return pos + 8;
+        case BSON_STRING:
+        case BSON_CODE:
+        case BSON_SYMBOL:
+            return pos + 4 + readInt(b, pos);
+        case BSON_DOCUMENT:
+        case BSON_ARRAY:
+        case BSON_CODE_W_SCOPE:
+            return pos + readInt(b, pos);
+        case BSON_BINARY:
+            return pos + 5 + readInt(b, pos);
+        case BSON_UNDEFINED:
+        case BSON_NULL:
+        case BSON_MIN_KEY:
+        case BSON_MAX_KEY:
+            return pos;
+        case BSON_OBJECT_ID:
+            return pos + 12;
+        case BSON_BOOLEAN:
+            return pos + 1;
+        case BSON_REGEX:
+            return skipCString(b, skipCString(b, pos));
+        case BSON_DB_POINTER:
+            return pos + 4 + readInt(b, pos) + 12;
+        case BSON_INT32:
+            return pos + 4;
+        case BSON_DECIMAL128:
+            return pos + 16;
+        default:
+            throw new IllegalArgumentException(String.format(
+                "Invalid BSON type 0x%02x at offset %d", type & 0xff, pos));
+        }
+    }
+
+    private static int skipCString(final byte[] b, final int pos) {
+        int p = pos;
+        while (b[p] != 0) {
+            p++;
+        }
+        return p + 1;
+    }
+
+    private static double readNumber(
+        final byte[] b,
+        final int pos,
+        final byte type
+    ) {
+        switch (type) {
+        case BSON_DOUBLE:
+            return Double.longBitsToDouble(readLong(b, pos));
+        case BSON_INT32:
+            return readInt(b, pos);
+        case BSON_INT64:
+            return readLong(b, pos);
+        default:
+            return Double.NaN;
+        }
+    }
+
+    private static String readString(final byte[] b, final int pos) {
+        // length includes the trailing NUL
+        return new String(b, pos + 4, readInt(b, pos) - 1, UTF8);
+    }
+
+    private static int readInt(final byte[] b, final int pos) {
+        return (b[pos] & 0xff) | (b[pos + 1] & 0xff) << 8
+            | (b[pos + 2] & 0xff) << 16 | (b[pos + 3] & 0xff) << 24;
+    }
+
+    private static long readLong(final byte[] b, final int pos) {
+        return (readInt(b, pos) & 0xffffffffL)
+            | ((long) readInt(b, pos + 4)) << 32;
+    }
+
+    private static class ReplyStatus {
+        private double ok = Double.NaN;
+        private String errmsg;
+    }
+}
@@ -40,7 +40,7 @@ public class MetricPath {
         sb.append(translate(nm));
     }
 
-    private String translate(final String in) {
+    static String translate(final String in) {
         return in.replace("|", "_").replace(":", ";");
     }
 
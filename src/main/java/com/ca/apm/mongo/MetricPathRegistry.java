@@ -0,0 +1,273 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Canonical metric paths, each with a small integer id and its JSON
+ * encoding.
+ *
+ * Paths are built as a tree: a base path (e.g. "MongoDB@host;27017") is
+ * interned once, and every element or metric below it is looked up by its
+ * parent's id and its raw key.  Once a path has been seen, later cycles get
+ * the same String and pre-escaped JSON bytes back from a map lookup instead
+ * of building and translating the path again.
+ *
+ * A base path and everything below it can be dropped with
+ * {@link #remove(String)} once its server has left the topology.  Ids are
+ * never reused, so a bundle still holding a removed id can't be given
+ * another path: {@link #getPath(int)} and {@link #getJson(int)} return null
+ * for it, and children of a removed path are {@link #NO_PATH}.
+ */
+public class MetricPathRegistry {
+
+    public static final int NO_PATH = -1;
+
+    private static final String[] INDEX_NAMES = new String[1024];
+
+    static {
+        for (int i = 0; i < INDEX_NAMES.length; i++) {
+            INDEX_NAMES[i] = String.valueOf(i);
+        }
+    }
+
+    private static final int ELEMENTS = 0;
+    private static final int METRICS = 1;
+    private static final int SUFFIXES = 2;
+
+    private final ConcurrentMap<String, Node> roots =
+        new ConcurrentHashMap<String, Node>();
+    private volatile Node[] nodes = new Node[1024];
+    private int count;
+    private int live;
+
+    /**
+     * Returns the id of a path given as a whole (no translation is done).
+     */
+    public int intern(final String path) {
+        final Node n = roots.get(path);
+        if (n != null) {
+            return n.id;
+        }
+        return register(null, ELEMENTS, path, path);
+    }
+
+    /**
+     * Returns the id of parent|key.
+     */
+    public int element(final int parentId, final String key) {
+        final Node parent = node(parentId);
+        if (parent == null) {
+            return NO_PATH;
+        }
+        final Node n = child(parent.elements, key);
+        if (n != null) {
+            return n.id;
+        }
+        return register(parent, ELEMENTS, key,
+            parent.path + "|" + MetricPath.translate(key));
+    }
+
+    /**
+     * Returns the id of parent:key.
+     */
+    public int metric(final int parentId, final String key) {
+        final Node parent = node(parentId);
+        if (parent == null) {
+            return NO_PATH;
+        }
+        final Node n = child(parent.metrics, key);
+        if (n != null) {
+            return n.id;
+        }
+        return register(parent, METRICS, key,
+            parent.path + ":" + MetricPath.translate(key));
+    }
+
+    /**
+     * Returns the id of a metric path with a literal suffix appended, e.g.
+     * " (rounded)".
+     */
+    public int suffixed(final int metricId, final String suffix) {
+        final Node base = node(metricId);
+        if (base == null) {
+            return NO_PATH;
+        }
+        final Node n = child(base.suffixes, suffix);
+        if (n != null) {
+            return n.id;
+        }
+        return register(base, SUFFIXES, suffix, base.path + suffix);
+    }
+
+    /**
+     * The path, or null if it has been removed.
+     */
+    public String getPath(final int id) {
+        final Node n = node(id);
+        return n == null ? null : n.path;
+    }
+
+    /**
+     * The path as a quoted, escaped, UTF-8 encoded JSON string, or null if
+     * it has been removed.
+     */
+    public byte[] getJson(final int id) {
+        final Node n = node(id);
+        return n == null ? null : n.json;
+    }
+
+    /**
+     * Returns the number of paths currently registered.
+     */
+    public synchronized int size() {
+        return live;
+    }
+
+    /**
+     * Drops a path given to {@link #intern(String)} and every path below
+     * it.
+     *
+     * @return the number of paths removed
+     */
+    public synchronized int remove(final String path) {
+        final Node n = roots.remove(path);
+        if (n == null) {
+            return 0;
+        }
+        final int removed = drop(n, nodes);
+        live -= removed;
+        return removed;
+    }
+
+    /**
+     * Cached decimal names for list indexes.
+     */
+    public static String indexName(final int i) {
+        return i < INDEX_NAMES.length ? INDEX_NAMES[i] : String.valueOf(i);
+    }
+
+    private Node node(final int id) {
+        final Node[] arr = nodes;
+        return id >= 0 && id < arr.length ? arr[id] : null;
+    }
+
+    private static Node child(
+        final ConcurrentMap<String, Node> map,
+        final String key
+    ) {
+        return map == null ? null : map.get(key);
+    }
+
+    private static int drop(final Node n, final Node[] arr) {
+        arr[n.id] = null;
+        return 1 + dropAll(n.elements, arr) + dropAll(n.metrics, arr)
+            + dropAll(n.suffixes, arr);
+    }
+
+    private static int dropAll(
+        final ConcurrentMap<String, Node> map,
+        final Node[] arr
+    ) {
+        if (map == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (Node c : map.values()) {
+            removed += drop(c, arr);
+        }
+        return removed;
+    }
+
+    private synchronized int register(
+        final Node parent,
+        final int kind,
+        final String key,
+        final String path
+    ) {
+        if (parent != null && nodes[parent.id] != parent) {
+            // removed while we were looking it up
+            return NO_PATH;
+        }
+        ConcurrentMap<String, Node> map = parent == null
+            ? roots : parent.children(kind);
+        if (map == null) {
+            map = new ConcurrentHashMap<String, Node>(4);
+            parent.setChildren(kind, map);
+        }
+        Node n = map.get(key);
+        if (n != null) {
+            return n.id;
+        }
+        n = new Node(count, path);
+        Node[] arr = nodes;
+        if (count == arr.length) {
+            final Node[] grown = new Node[arr.length * 2];
+            System.arraycopy(arr, 0, grown, 0, arr.length);
+            arr = grown;
+        }
+        arr[count++] = n;
+        live++;
+        // publish the node before it can be found by key
+        nodes = arr;
+        map.put(key, n);
+        return n.id;
+    }
+
+    private static final class Node {
+        private final int id;
+        private final String path;
+        private final byte[] json;
+        // created on first use; most nodes are leaves
+        private volatile ConcurrentMap<String, Node> elements;
+        private volatile ConcurrentMap<String, Node> metrics;
+        private volatile ConcurrentMap<String, Node> suffixes;
+
+        Node(final int id, final String path) {
+            this.id = id;
+            this.path = path;
+            this.json = MetricFeedWriter.quote(path);
+        }
+
+        ConcurrentMap<String, Node> children(final int kind) {
+            return kind == ELEMENTS ? elements
+                : kind == METRICS ? metrics : suffixes;
+        }
+
+        void setChildren(
+            final int kind,
+            final ConcurrentMap<String, Node> map
+        ) {
+            if (kind == ELEMENTS) {
+                elements = map;
+            } else if (kind == METRICS) {
+                metrics = map;
+            } else {
+                suffixes = map;
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+package com.ca.apm.mongo;
+
+/**
+ * Where the collector sends its finished metric bundles.
+ *
+ * The sink is chosen with apm.sink: "http" posts to the APM agent's
+ * metricFeed REST endpoint ({@link MetricFeedClient}), "tcp" writes XML to
+ * the agent's network data port ({@link TcpMetricSink}), and "file" appends
+ * newline-delimited metricFeed JSON to local files ({@link FileMetricSink}).
+ * Implementations must allow send to be called from several threads.
+ */
+public interface MetricSink {
+
+    /**
+     * Sends a bundle.
+     *
+     * @throws java.io.IOException if the destination can't take the
+     *                             metrics right now
+     */
+    void send(MetricFeedBundle mfb) throws Exception;
+
+    /**
+     * Releases the sink's connections or files.
+     */
+    void close();
+}
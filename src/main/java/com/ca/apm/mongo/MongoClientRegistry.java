@@ -0,0 +1,429 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCredential;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+
+/**
+ * Long-lived MongoClient instances keyed by "host:port".
+ *
+ * A client is created (connected and authenticated) the first time a
+ * member is asked for and then reused for every subsequent command, so
+ * each collection cycle no longer pays connection setup and authentication
+ * for every member.  Clients that fail with a network error are discarded
+ * and rebuilt on next use, and clients for members that have not been used
+ * within the idle timeout (e.g. they left the topology) are closed by
+ * {@link #evictIdle()}.
+ *
+ * Commands hold a reference on their client while they run, so a client
+ * that is dropped from the registry mid-command is only closed once the
+ * last command using it has finished.  Code that needs the client itself
+ * (e.g. to iterate a cursor) uses it inside {@link #withClient}, which
+ * holds the same reference.
+ */
+public class MongoClientRegistry {
+
+    /** Works with a member's client; see {@link #withClient}. */
+    public interface ClientTask<T> {
+        T run(MongoClient client) throws Exception;
+    }
+
+    private final Properties props;
+    private final List<MongoCredential> mongoCreds;
+    private final long idleMillis;
+    private final Logger logger;
+
+    private final Map<String, Entry> clients =
+        new ConcurrentHashMap<String, Entry>();
+    private volatile boolean closed;
+
+    public MongoClientRegistry(
+        final Properties props,
+        final List<MongoCredential> mongoCreds,
+        final long idleMillis,
+        final Logger l
+    ) {
+        this.props = props;
+        this.mongoCreds = mongoCreds;
+        this.idleMillis = idleMillis;
+        this.logger = l;
+    }
+
+    public static String key(final String host, final int port) {
+        return String.format("%s:%d", host, port);
+    }
+
+    /**
+     * Runs a task with the cached client for a member, creating it if
+     * necessary.  The client is not closed until the task returns, even if
+     * the member is invalidated, evicted or dropped meanwhile.  The task
+     * must not keep the client, or anything reading through it, once it
+     * returns.
+     */
+    public <T> T withClient(
+        final String host,
+        final int port,
+        final ClientTask<T> task
+    ) throws Exception {
+        final Entry e = acquire(host, port);
+        try {
+            return task.run(e.client);
+        } catch (Exception ex) {
+            checkHealth(host, port, e, ex);
+            throw ex;
+        } finally {
+            release(e);
+        }
+    }
+
+    private Entry acquire(final String host, final int port) {
+        final String key = key(host, port);
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("client registry is closed");
+            }
+            Entry e = clients.get(key);
+            if (e == null) {
+                synchronized (this) {
+                    e = clients.get(key);
+                    if (e == null) {
+                        e = new Entry(setupDbClient(host, port));
+                        clients.put(key, e);
+                    }
+                }
+            }
+            synchronized (e) {
+                if (!e.retired) {
+                    e.inUse++;
+                    e.lastUsed = System.currentTimeMillis();
+                    return e;
+                }
+            }
+            // retired between the lookup and the lock; build a new one
+            clients.remove(key, e);
+        }
+    }
+
+    private void release(final Entry e) {
+        synchronized (e) {
+            e.inUse--;
+            if (!e.retired || e.inUse > 0) {
+                return;
+            }
+        }
+        close(e);
+    }
+
+    /**
+     * Marks a client as no longer handed out and closes it once no command
+     * is using it.
+     */
+    private void retire(final Entry e) {
+        if (e == null) {
+            return;
+        }
+        synchronized (e) {
+            e.retired = true;
+            if (e.inUse > 0) {
+                return;
+            }
+        }
+        close(e);
+    }
+
+    public CommandResult runDBCmd(
+        final String host,
+        final int port,
+        final String database,
+        final DBObject cmd
+    ) throws Exception {
+        final Entry e = acquire(host, port);
+        try {
+            final DB db = e.client.getDB(database);
+            return db.command(cmd);
+        } catch (Exception ex) {
+            checkHealth(host, port, e, ex);
+            throw ex;
+        } finally {
+            release(e);
+        }
+    }
+
+    public CommandResult runDBCmd(
+        final String host,
+        final int port,
+        final String database,
+        final String cmd
+    ) throws Exception {
+        final Entry e = acquire(host, port);
+        try {
+            final DB db = e.client.getDB(database);
+            return db.command(cmd);
+        } catch (Exception ex) {
+            checkHealth(host, port, e, ex);
+            throw ex;
+        } finally {
+            release(e);
+        }
+    }
+
+    /**
+     * Runs a command and returns the reply as raw BSON.  This is what
+     * DB.command does, but through a cursor on $cmd so the reply can be
+     * decoded with {@link RawBsonDecoder}.
+     */
+    public RawBsonDecoder.Document runRawDBCmd(
+        final String host,
+        final int port,
+        final String database,
+        final DBObject cmd
+    ) throws Exception {
+        final Entry e = acquire(host, port);
+        try {
+            final DBCursor cur = e.client.getDB(database)
+                .getCollection("$cmd").find(cmd)
+                .batchSize(-1)
+                .setDecoderFactory(RawBsonDecoder.FACTORY);
+            try {
+                if (!cur.hasNext()) {
+                    throw new MongoException(
+                        "No reply to command " + cmd.keySet());
+                }
+                final RawBsonDecoder.Document doc =
+                    (RawBsonDecoder.Document) cur.next();
+                doc.setServerUsed(cur.getServerAddress());
+                return doc;
+            } finally {
+                cur.close();
+            }
+        } catch (Exception ex) {
+            checkHealth(host, port, e, ex);
+            throw ex;
+        } finally {
+            release(e);
+        }
+    }
+
+    /**
+     * Drops the client for a member if the exception indicates that its
+     * connection is no longer usable, so the next use reconnects.  Only
+     * the client the command ran on is dropped, not one another thread has
+     * already rebuilt.
+     */
+    private void checkHealth(
+        final String host,
+        final int port,
+        final Entry e,
+        final Exception ex
+    ) {
+        if (ex instanceof MongoSocketException
+            || ex instanceof MongoTimeoutException
+            || ex instanceof IllegalStateException) {
+            logger.log(Level.FINE, "Reconnecting to {0}:{1} after: {2}",
+                new Object[] {host, port, ex});
+            if (clients.remove(key(host, port), e)) {
+                retire(e);
+            }
+        }
+    }
+
+    public void invalidate(final String host, final int port) {
+        retire(clients.remove(key(host, port)));
+    }
+
+    /**
+     * Closes clients whose member has not been used within the idle
+     * timeout.
+     */
+    public void evictIdle() {
+        final long cutoff = System.currentTimeMillis() - idleMillis;
+        final Iterator<Map.Entry<String, Entry>> it =
+            clients.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Entry> me = it.next();
+            final Entry e = me.getValue();
+            // re-checked under the entry so a client that was just handed
+            // out, or is running a command, is left alone
+            synchronized (e) {
+                if (e.inUse > 0 || e.lastUsed >= cutoff) {
+                    continue;
+                }
+                e.retired = true;
+            }
+            logger.log(Level.INFO, "Closing idle mongo client for {0}",
+                me.getKey());
+            clients.remove(me.getKey(), e);
+            close(e);
+        }
+    }
+
+    /**
+     * Closes the clients of every member that is not in the given set.
+     */
+    public void retain(final Collection<String> members) {
+        final Set<String> keep = new HashSet<String>(members);
+        for (String key : new ArrayList<String>(clients.keySet())) {
+            if (!keep.contains(key)) {
+                logger.log(Level.INFO, "Closing mongo client for {0}", key);
+                retire(clients.remove(key));
+            }
+        }
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (Entry e : clients.values()) {
+            retire(e);
+        }
+        clients.clear();
+    }
+
+    private void close(final Entry e) {
+        if (e == null) {
+            return;
+        }
+        try {
+            e.client.close();
+        } catch (Exception ex) {
+            logger.log(Level.FINE, "Exception closing mongo client: {0}", ex);
+        }
+    }
+
+    /**
+     * Creates a client that tracks a whole replica set, for watching its
+     * membership and primary.  The driver checks every member once per
+     * heartbeat.  The client is not cached; the caller must close it.
+     */
+    public MongoClient newReplicaSetClient(
+        final String setName,
+        final List<String> seeds,
+        final int heartbeatMillis
+    ) throws Exception {
+        final List<ServerAddress> addrs = new ArrayList<ServerAddress>();
+        for (String seed : seeds) {
+            addrs.add(new ServerAddress(seed));
+        }
+        final MongoClientOptions options = clientOptions()
+            .requiredReplicaSetName(setName)
+            .heartbeatFrequency(heartbeatMillis)
+            // don't let a set without a primary hold up its watcher
+            .maxWaitTime(heartbeatMillis)
+            .build();
+        return new MongoClient(addrs, mongoCreds, options);
+    }
+
+    private MongoClient setupDbClient(final String dbHost, final int dbPort) {
+        try {
+            final MongoClientOptions options = clientOptions().build();
+            MongoClient dbClient = new MongoClient(
+                new ServerAddress(dbHost, dbPort),
+                mongoCreds,
+                options);
+            logger.log(Level.FINE, "Created mongo client for {0}:{1}",
+                new Object[] {dbHost, dbPort});
+            logger.log(Level.FINE, "Client options: "
+                + dbClient.getMongoClientOptions());
+            return dbClient;
+        } catch (Exception ex) {
+            throw new RuntimeException(
+                "Can't initialize mongo client", ex);
+        }
+    }
+
+    private MongoClientOptions.Builder clientOptions() {
+        final boolean useSSL =
+            Collector.getBooleanProp(Collector.USE_SSL_PROP, props);
+        final String clientTrustStore =
+            Collector.getOptionalStringProp(
+                Collector.SSL_CLIENT_TRUST_STORE_FILE_PROP, props);
+        final String clientPasswd =
+            Collector.getOptionalStringProp(
+                Collector.SSL_CLIENT_TRUST_STORE_PASSWD_PROP, props);
+
+        MongoClientOptions.Builder builder =
+            new MongoClientOptions.Builder();
+
+        if (useSSL) {
+            System.setProperty(
+                Collector.SSL_CLIENT_TRUST_STORE_FILE_PROP,
+                clientTrustStore);
+            System.setProperty(
+                Collector.SSL_CLIENT_TRUST_STORE_PASSWD_PROP,
+                clientPasswd);
+            builder = builder.socketFactory(SSLSocketFactory.getDefault());
+        }
+
+        // bound how long a single slow member can hold up a command
+        final int timeoutMillis = (int) TimeUnit.SECONDS.toMillis(
+            Collector.getOptionalIntProp(
+                Collector.MEMBER_TIMEOUT_PROP, 0, props));
+        if (timeoutMillis > 0) {
+            builder = builder.connectTimeout(timeoutMillis)
+                .socketTimeout(timeoutMillis);
+        }
+        return builder;
+    }
+
+    private static class Entry {
+        private final MongoClient client;
+        private volatile long lastUsed;
+        // both guarded by the entry's lock
+        private int inUse;
+        private boolean retired;
+
+        Entry(final MongoClient client) {
+            this.client = client;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.DBObject;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
+import com.mongodb.ServerAddress;
+
+/**
+ * A decoder that keeps each reply document as its raw BSON bytes instead
+ * of building nested BasicDBObjects, for {@link MetricFlattener} to read
+ * directly.
+ */
+public class RawBsonDecoder extends LazyDBDecoder {
+
+    public static final DBDecoderFactory FACTORY = new DBDecoderFactory() {
+        public DBDecoder create() {
+            return new RawBsonDecoder();
+        }
+    };
+
+    @Override
+    public DBObject decode(final byte[] b, final DBCollection collection) {
+        return new Document(b, collection);
+    }
+
+    @Override
+    public DBObject decode(
+        final InputStream in,
+        final DBCollection collection
+    ) throws IOException {
+        final byte[] head = new byte[4];
+        readFully(in, head, 0, 4);
+        final int len = (head[0] & 0xff) | (head[1] & 0xff) << 8
+            | (head[2] & 0xff) << 16 | (head[3] & 0xff) << 24;
+        if (len < 5) {
+            throw new IOException("Invalid BSON document length " + len);
+        }
+        final byte[] doc = new byte[len];
+        System.arraycopy(head, 0, doc, 0, 4);
+        readFully(in, doc, 4, len - 4);
+        return new Document(doc, collection);
+    }
+
+    private static void readFully(
+        final InputStream in,
+        final byte[] b,
+        final int off,
+        final int len
+    ) throws IOException {
+        int n = 0;
+        while (n < len) {
+            final int r = in.read(b, off + n, len - n);
+            if (r < 0) {
+                throw new EOFException();
+            }
+            n += r;
+        }
+    }
+
+    /**
+     * A reply document backed by its BSON bytes.
+     */
+    public static class Document extends LazyDBObject {
+        private ServerAddress serverUsed;
+
+        public Document(final byte[] b, final DBCollection collection) {
+            super(b, new LazyDBCallback(collection));
+        }
+
+        public byte[] getBsonBytes() {
+            return getBytes();
+        }
+
+        public int getBsonOffset() {
+            return getOffset();
+        }
+
+        public ServerAddress getServerUsed() {
+            return serverUsed;
+        }
+
+        void setServerUsed(final ServerAddress sa) {
+            serverUsed = sa;
+        }
+    }
+}
@@ -32,9 +32,10 @@ public class ReplicaSet extends Topology {
         final Properties props,
         final String h,
         final int p,
-        final Logger l
+        final Logger l,
+        final MongoClientRegistry c
     ) {
-        super(props, h, p, l, ClusterType.REPLICA_SET);
+        super(props, h, p, l, c, ClusterType.REPLICA_SET);
     }
 
     private String host = dbHost;
@@ -0,0 +1,162 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Aggregates metrics sampled several times per collection interval, so
+ * short spikes show up without sending every sample to the agent.
+ *
+ * For every numeric path of a member the minimum, maximum, sum, count and
+ * last value since the previous collection are kept in primitive arrays.
+ * Each collection cycle then adds "&lt;name&gt; (min)", " (max)",
+ * " (avg)" and " (last)" to the member's bundle and starts a new interval.
+ */
+public class SampleAggregator {
+
+    private final MetricPathRegistry paths;
+    private final ConcurrentMap<String, Series> members =
+        new ConcurrentHashMap<String, Series>();
+
+    public SampleAggregator(final MetricPathRegistry paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Adds the numeric values of one sample of a member.
+     */
+    public void add(final String member, final MetricFeedBundle sample) {
+        final Series s = series(member);
+        synchronized (s) {
+            final int n = sample.size();
+            for (int i = 0; i < n; i++) {
+                if (!sample.isText(i)) {
+                    s.add(sample.getPathId(i), sample.getLong(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the aggregates of a member's samples since the last call to its
+     * bundle and starts a new interval.
+     *
+     * @return the number of samples aggregated
+     */
+    public int drain(final String member, final MetricFeedBundle mfb) {
+        final Series s = members.get(member);
+        if (s == null) {
+            return 0;
+        }
+        synchronized (s) {
+            int samples = 0;
+            for (int i = 0; i < s.size; i++) {
+                final int c = s.count[i];
+                if (c == 0) {
+                    continue;
+                }
+                samples = Math.max(samples, c);
+                final int id = s.ids[i];
+                mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+                    paths.suffixed(id, " (min)"), s.min[i]);
+                mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+                    paths.suffixed(id, " (max)"), s.max[i]);
+                mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+                    paths.suffixed(id, " (avg)"),
+                    Math.round((double) s.sum[i] / c));
+                mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+                    paths.suffixed(id, " (last)"), s.last[i]);
+                s.count[i] = 0;
+            }
+            return samples;
+        }
+    }
+
+    /**
+     * Forgets the samples of every member not in the given set.
+     */
+    public void retain(final Collection<String> keep) {
+        members.keySet().retainAll(new HashSet<String>(keep));
+    }
+
+    private Series series(final String member) {
+        Series s = members.get(member);
+        if (s == null) {
+            members.putIfAbsent(member, new Series());
+            s = members.get(member);
+        }
+        return s;
+    }
+
+    // one slot per path, reused from interval to interval
+    private static final class Series {
+        private final IntLongMap slots = new IntLongMap(64);
+        private int size;
+        private int[] ids = new int[64];
+        private int[] count = new int[64];
+        private long[] min = new long[64];
+        private long[] max = new long[64];
+        private long[] sum = new long[64];
+        private long[] last = new long[64];
+
+        void add(final int id, final long v) {
+            int i = (int) slots.get(id, -1);
+            if (i < 0) {
+                i = size++;
+                if (i == ids.length) {
+                    grow();
+                }
+                ids[i] = id;
+                slots.put(id, i);
+            }
+            if (count[i] == 0) {
+                min[i] = v;
+                max[i] = v;
+                sum[i] = 0;
+            } else if (v < min[i]) {
+                min[i] = v;
+            } else if (v > max[i]) {
+                max[i] = v;
+            }
+            sum[i] += v;
+            last[i] = v;
+            count[i]++;
+        }
+
+        private void grow() {
+            final int cap = ids.length * 2;
+            ids = Arrays.copyOf(ids, cap);
+            count = Arrays.copyOf(count, cap);
+            min = Arrays.copyOf(min, cap);
+            max = Arrays.copyOf(max, cap);
+            sum = Arrays.copyOf(sum, cap);
+            last = Arrays.copyOf(last, cap);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.Arrays;
+
+/**
+ * The layout of one server's reply as seen by {@link MetricFlattener}: every
+ * element in document order (with an end marker for each document), its
+ * BSON type and key bytes, and what to do with it, including the path ids
+ * of the metrics it becomes.
+ *
+ * A reply whose elements match the plan one for one can be flattened by
+ * reading the values alone.  The fingerprint is a hash of the layout, used
+ * to report when a server's layout changes.
+ */
+final class SchemaPlan {
+
+    static final byte DESCEND = 0;
+    static final byte SKIP = 1;
+    static final byte EMIT = 2;
+    static final byte OK = 3;
+
+    final int basePathId;
+
+    private int size;
+    private byte[] types = new byte[256];
+    private byte[] actions = new byte[256];
+    private int[] keyOffsets = new int[256];
+    private int[] keyLengths = new int[256];
+    private int[] ids = new int[256];
+    private int[] ids2 = new int[256];
+    private byte[] keys = new byte[4096];
+    private int keysLength;
+    private long fingerprint = 0xcbf29ce484222325L;
+
+    SchemaPlan(final int basePathId) {
+        this.basePathId = basePathId;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    byte type(final int op) {
+        return types[op];
+    }
+
+    byte action(final int op) {
+        return actions[op];
+    }
+
+    int id(final int op) {
+        return ids[op];
+    }
+
+    int id2(final int op) {
+        return ids2[op];
+    }
+
+    int keyLength(final int op) {
+        return keyLengths[op];
+    }
+
+    /**
+     * Whether the NUL-terminated key at pos in b is the key of op.
+     */
+    boolean keyMatches(final int op, final byte[] b, final int pos) {
+        final int len = keyLengths[op];
+        if (pos + len >= b.length || b[pos + len] != 0) {
+            return false;
+        }
+        final int off = keyOffsets[op];
+        for (int i = 0; i < len; i++) {
+            if (b[pos + i] != keys[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends an element, whose key is len bytes at keyStart in b.
+     */
+    void add(
+        final byte type,
+        final byte[] b,
+        final int keyStart,
+        final int len,
+        final byte action,
+        final int id,
+        final int id2
+    ) {
+        if (size == types.length) {
+            final int cap = size * 2;
+            types = Arrays.copyOf(types, cap);
+            actions = Arrays.copyOf(actions, cap);
+            keyOffsets = Arrays.copyOf(keyOffsets, cap);
+            keyLengths = Arrays.copyOf(keyLengths, cap);
+            ids = Arrays.copyOf(ids, cap);
+            ids2 = Arrays.copyOf(ids2, cap);
+        }
+        if (keysLength + len > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2,
+                keysLength + len));
+        }
+        System.arraycopy(b, keyStart, keys, keysLength, len);
+        types[size] = type;
+        actions[size] = action;
+        keyOffsets[size] = keysLength;
+        keyLengths[size] = len;
+        ids[size] = id;
+        ids2[size] = id2;
+        size++;
+        keysLength += len;
+
+        fingerprint = (fingerprint ^ type) * 0x100000001b3L;
+        for (int i = keyStart; i < keyStart + len; i++) {
+            fingerprint = (fingerprint ^ b[i]) * 0x100000001b3L;
+        }
+    }
+
+    /**
+     * Appends the end of a document.
+     */
+    void addEnd() {
+        add((byte) 0, keys, 0, 0, SKIP, MetricPathRegistry.NO_PATH,
+            MetricPathRegistry.NO_PATH);
+    }
+}
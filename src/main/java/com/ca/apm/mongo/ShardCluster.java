@@ -26,6 +26,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
@@ -45,9 +49,10 @@ public final class ShardCluster extends Topology {
         final Properties props,
         final String h,
         final int p,
-        final Logger l
+        final Logger l,
+        final MongoClientRegistry c
     ) {
-        super(props, h, p, l, ClusterType.SHARDED_CLUSTER);
+        super(props, h, p, l, c, ClusterType.SHARDED_CLUSTER);
     }
 
     private String host = dbHost;
@@ -60,6 +65,7 @@ public final class ShardCluster extends Topology {
         List<String> cfgServers = null;
 
         logger.log(Level.FINE, "Shard Cluster Node Type: {0}", nodeType);
+        this.nodeType = nodeType;
 
         if ("shardRouter".equals(nodeType)) {
 
@@ -114,27 +120,89 @@ public final class ShardCluster extends Topology {
 
         if (cr.ok()) {
             final BasicDBList shardList= (BasicDBList)cr.get("shards");
+            final List<Callable<List<String>>> tasks =
+                new ArrayList<Callable<List<String>>>();
             for (Object obj : shardList) {
                 final BasicDBObject bdbo = (BasicDBObject) obj;
-                String shards = bdbo.getString("host");
+                final String shards = bdbo.getString("host");
                 if (shards.indexOf("/") != -1) {
-                    final String [] shardMembers =
-                        shards.split("/")[1].split(",");
-                    for (String member : shardMembers) {
-                        final MongoServer ms =
-                            new MongoServer(member);
-                        shardResult.addAll(discoverReplicas(
-                                ms.getHost(), ms.getPort()));
-                    }
+                    tasks.add(new Callable<List<String>>() {
+                        public List<String> call() {
+                            return discoverShard(shards);
+                        }
+                    });
                 } else {
                     // single node shard
                     shardResult.add(shards);
                 }
             }
+            shardResult.addAll(runDiscovery(tasks));
         }
         return shardResult;
     }
 
+    /**
+     * Runs the per-shard discovery tasks, at most
+     * mongo.discovery.threads at a time, and returns all their members.
+     */
+    private List<String> runDiscovery(
+        final List<Callable<List<String>>> tasks
+    ) throws Exception {
+        final List<String> result = new ArrayList<String>();
+        if (tasks.isEmpty()) {
+            return result;
+        }
+        final int threads = Math.min(tasks.size(), Math.max(1,
+            Collector.getOptionalIntProp(
+                Collector.DISCOVERY_THREADS_PROP, 8, getProps())));
+        final ExecutorService pool =
+            WorkerPools.newFixedPool(threads, "mongo-discovery");
+        try {
+            for (Future<List<String>> f : pool.invokeAll(tasks)) {
+                try {
+                    result.addAll(f.get());
+                } catch (ExecutionException ee) {
+                    logger.log(Level.WARNING,
+                        "Exception discovering shard: {0}", ee.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Finds the members of a replica set shard, given as
+     * "name/host:port,...".  Every member reports the same set, so members
+     * are asked in turn only until one answers.  If none does, the hosts
+     * in the shard string are used as they are.
+     */
+    private List<String> discoverShard(final String shard) {
+        final String[] seeds = getShardMembers(shard);
+        for (String member : seeds) {
+            try {
+                final MongoServer ms = new MongoServer(member);
+                final List<String> replicas =
+                    discoverReplicas(ms.getHost(), ms.getPort());
+                if (!replicas.isEmpty()) {
+                    return replicas;
+                }
+            } catch (Exception e) {
+                logger.log(Level.FINE,
+                    "Exception discovering replicas from {0}: {1}",
+                    new Object[] {member, e});
+            }
+        }
+        logger.log(Level.WARNING,
+            "No member of shard {0} answered, using its seed list", shard);
+        final List<String> result = new ArrayList<String>();
+        for (String member : seeds) {
+            result.add(member);
+        }
+        return result;
+    }
+
     private List<String> getShardsFromConfig(
         final String host,
         final int port
@@ -142,29 +210,27 @@ public final class ShardCluster extends Topology {
 
         final List<String> shardList = new ArrayList<String>();
 
-        MongoClient dbClient = null;
-
         try {
-            dbClient = setupDbClient(host, port);
-
-            final DB configDB = dbClient.getDB("config");
-            final DBCursor shardsCursor =
-                configDB.getCollectionFromString("shards").find();
-            while (shardsCursor.hasNext()) {
-                final DBObject dbo = shardsCursor.next();
-                String shards = (String) dbo.get("host");
-                String [] shardMembers = getShardMembers(shards);
-                for (String member : shardMembers) {
-                    shardList.add(member);
-                }
-            }
+            withDbClient(host, port,
+                new MongoClientRegistry.ClientTask<Void>() {
+                    public Void run(final MongoClient dbClient) {
+                        final DB configDB = dbClient.getDB("config");
+                        final DBCursor shardsCursor =
+                            configDB.getCollectionFromString("shards").find();
+                        while (shardsCursor.hasNext()) {
+                            final DBObject dbo = shardsCursor.next();
+                            String shards = (String) dbo.get("host");
+                            String [] shardMembers = getShardMembers(shards);
+                            for (String member : shardMembers) {
+                                shardList.add(member);
+                            }
+                        }
+                        return null;
+                    }
+                });
         } catch (Exception e) {
             logger.log(Level.WARNING,
                 "Exception getting shards from cfg servers: {0}", e);
-        } finally {
-            if (dbClient != null) {
-                dbClient.close();
-            }
         }
         return shardList;
     }
@@ -176,25 +242,24 @@ public final class ShardCluster extends Topology {
 
         final List<String> shardRouters = new ArrayList<String>();
 
-        MongoClient dbClient = null;
-
         try {
-            dbClient = setupDbClient(host, port);
-            final DB configDB = dbClient.getDB("config");
-            final DBCursor mongosCursor =
-                configDB.getCollectionFromString("mongos").find();
-            while (mongosCursor.hasNext()) {
-                final DBObject dbo = mongosCursor.next();
-                final String mongos = (String) dbo.get("_id");
-                shardRouters.add(mongos);
-            }
+            withDbClient(host, port,
+                new MongoClientRegistry.ClientTask<Void>() {
+                    public Void run(final MongoClient dbClient) {
+                        final DB configDB = dbClient.getDB("config");
+                        final DBCursor mongosCursor =
+                            configDB.getCollectionFromString("mongos").find();
+                        while (mongosCursor.hasNext()) {
+                            final DBObject dbo = mongosCursor.next();
+                            final String mongos = (String) dbo.get("_id");
+                            shardRouters.add(mongos);
+                        }
+                        return null;
+                    }
+                });
         } catch (Exception e) {
             logger.log(Level.WARNING,
                 "Exception getting mongos from cfg server(s): {0}", e);
-        } finally {
-            if (dbClient != null) {
-                dbClient.close();
-            }
         }
         return shardRouters;
     }
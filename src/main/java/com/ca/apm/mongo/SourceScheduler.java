@@ -0,0 +1,294 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Runs additional metric sources (commands other than the main
+ * serverStatus, such as replSetGetStatus or dbStats) against every member,
+ * each on its own interval.
+ *
+ * Every source is kept on a timer queue ordered by when it is next due.
+ * When a source comes due, its members are queued for that round and
+ * worked through by at most maxConcurrent tasks on a shared pool, so an
+ * expensive source never hits many members at once.  Across all sources,
+ * at most memberLimit commands run on the same member at a time; a member
+ * that is at its limit is put back at the end of the round while others
+ * are waiting.  A member whose previous round of the same source is still
+ * running is skipped.  The next round is scheduled one interval plus a
+ * random jitter later, which keeps sources with equal intervals from
+ * lining up.
+ */
+public class SourceScheduler {
+
+    /** Collects one source from one member. */
+    public interface Runner {
+        void run(Source source, String member) throws Exception;
+    }
+
+    /** Supplies the members to collect from. */
+    public interface Members {
+        List<String> get();
+    }
+
+    /**
+     * A command run against every member on its own schedule.
+     */
+    public static final class Source {
+        private final String name;
+        private final String database;
+        private final BasicDBObject command;
+        private final boolean perDatabase;
+        private final long intervalMillis;
+        private final long jitterMillis;
+        private final int maxConcurrent;
+        // members queued or running in the current round
+        private final Set<String> busy = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+
+        /**
+         * @param perDatabase run the command in every database of the
+         *                    member rather than in the given one
+         */
+        public Source(
+            final String name,
+            final String database,
+            final BasicDBObject command,
+            final boolean perDatabase,
+            final long intervalMillis,
+            final long jitterMillis,
+            final int maxConcurrent
+        ) {
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException(
+                    "interval of source " + name + " must be positive");
+            }
+            this.name = name;
+            this.database = database;
+            this.command = command;
+            this.perDatabase = perDatabase;
+            this.intervalMillis = intervalMillis;
+            this.jitterMillis = Math.max(0, jitterMillis);
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDatabase() {
+            return database;
+        }
+
+        public BasicDBObject getCommand() {
+            return command;
+        }
+
+        public boolean isPerDatabase() {
+            return perDatabase;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s every %ds", name,
+                TimeUnit.MILLISECONDS.toSeconds(intervalMillis));
+        }
+    }
+
+    private final List<Source> sources;
+    private final Members members;
+    private final Runner runner;
+    private final int memberLimit;
+    // permits of the sources running on each member, shared by all sources
+    private final ConcurrentMap<String, Semaphore> permits =
+        new ConcurrentHashMap<String, Semaphore>();
+    private final ExecutorService pool;
+    private final Logger logger;
+    private final ScheduledExecutorService timer =
+        WorkerPools.newScheduler("mongo-sources-timer");
+    private final Random random = new Random();
+
+    /**
+     * @param memberLimit the most sources run on one member at the same
+     *                    time, 0 for no limit
+     */
+    public SourceScheduler(
+        final List<Source> sources,
+        final Members members,
+        final Runner runner,
+        final int threads,
+        final int memberLimit,
+        final Logger l
+    ) {
+        this.sources = sources;
+        this.members = members;
+        this.runner = runner;
+        this.memberLimit = Math.max(0, memberLimit);
+        this.pool = WorkerPools.newFixedPool(threads, "mongo-sources");
+        this.logger = l;
+    }
+
+    /**
+     * Schedules the first round of every source, each within its first
+     * interval so they don't all start together.
+     */
+    public void start() {
+        for (Source s : sources) {
+            schedule(s, (long) (random.nextDouble() * s.intervalMillis));
+            logger.log(Level.INFO, "Collecting {0}", s);
+        }
+    }
+
+    public void close() {
+        timer.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    private void schedule(final Source s, final long delayMillis) {
+        if (timer.isShutdown()) {
+            return;
+        }
+        timer.schedule(new Runnable() {
+            public void run() {
+                dispatch(s);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void dispatch(final Source s) {
+        try {
+            final Queue<String> round = new ConcurrentLinkedQueue<String>();
+            final List<String> current = members.get();
+            prunePermits(current);
+            for (String m : current) {
+                if (s.busy.add(m)) {
+                    round.add(m);
+                } else {
+                    logger.log(Level.FINE,
+                        "{0} still running on {1}, skipping it",
+                        new Object[] {s.name, m});
+                }
+            }
+            final int lanes = s.maxConcurrent > 0
+                ? Math.min(s.maxConcurrent, round.size()) : round.size();
+            for (int i = 0; i < lanes; i++) {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        drain(s, round);
+                    }
+                });
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Exception dispatching " + s.name
+                + ": ", e);
+        } finally {
+            final long jitter = s.jitterMillis == 0
+                ? 0 : (long) (random.nextDouble() * s.jitterMillis);
+            schedule(s, s.intervalMillis + jitter);
+        }
+    }
+
+    private void drain(final Source s, final Queue<String> round) {
+        String m;
+        int deferred = 0;
+        while ((m = round.poll()) != null) {
+            final Semaphore p = permit(m);
+            if (p != null && !p.tryAcquire()) {
+                // the member is at its limit; try the others first, and
+                // only wait for it once every member left has been tried
+                if (deferred++ <= round.size()) {
+                    round.add(m);
+                    continue;
+                }
+                try {
+                    p.acquire();
+                } catch (InterruptedException e) {
+                    s.busy.remove(m);
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            deferred = 0;
+            try {
+                runner.run(s, m);
+            } catch (Exception e) {
+                logger.log(Level.FINE, "Exception collecting {0} from {1}: {2}",
+                    new Object[] {s.name, m, e});
+            } finally {
+                if (p != null) {
+                    p.release();
+                }
+                s.busy.remove(m);
+            }
+        }
+    }
+
+    private Semaphore permit(final String member) {
+        if (memberLimit == 0) {
+            return null;
+        }
+        Semaphore p = permits.get(member);
+        if (p == null) {
+            permits.putIfAbsent(member, new Semaphore(memberLimit));
+            p = permits.get(member);
+        }
+        return p;
+    }
+
+    /**
+     * Drops the permits of members that left, unless a source is still
+     * running on them.
+     */
+    private void prunePermits(final List<String> current) {
+        final Set<String> keep = new HashSet<String>(current);
+        for (String m : permits.keySet()) {
+            final Semaphore p = permits.get(m);
+            if (!keep.contains(m) && p != null
+                && p.availablePermits() == memberLimit) {
+                permits.remove(m, p);
+            }
+        }
+    }
+}
@@ -33,9 +33,10 @@ public class StandaloneMongod extends Topology {
         final Properties props,
         final String h,
         final int p,
-        final Logger l
+        final Logger l,
+        final MongoClientRegistry c
     ) {
-        super(props, h, p, l, ClusterType.STANDALONE);
+        super(props, h, p, l, c, ClusterType.STANDALONE);
     }
 
     public void discoverServers(final String nodeType) throws Exception {
@@ -0,0 +1,170 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+package com.ca.apm.mongo;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends metrics to the APM agent's network data port, one XML element per
+ * metric:
+ *
+ * <pre>
+ *   &lt;metric type="LongCounter" name="MongoDB@host;27017:uptime" value="42"/&gt;
+ * </pre>
+ *
+ * A single connection is kept open and shared by all senders.  If a write
+ * fails the connection is dropped and a new one is made on the next send.
+ */
+public class TcpMetricSink implements MetricSink {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String host;
+    private final int port;
+    private final int timeoutMillis;
+    private final Logger logger;
+
+    private Socket socket;
+    private Writer out;
+
+    public TcpMetricSink(
+        final String host,
+        final int port,
+        final int timeoutMillis,
+        final Logger l
+    ) {
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.logger = l;
+    }
+
+    public synchronized void send(
+        final MetricFeedBundle mfb
+    ) throws Exception {
+        if (out == null) {
+            connect();
+        }
+        try {
+            final MetricPathRegistry paths = mfb.getPathRegistry();
+            final int n = mfb.size();
+            for (int i = 0; i < n; i++) {
+                final String name = paths.getPath(mfb.getPathId(i));
+                if (name == null) {
+                    continue;
+                }
+                out.write("<metric type=\"");
+                out.write(MetricFeedBundle.typeName(mfb.getType(i)));
+                out.write("\" name=\"");
+                writeEscaped(name);
+                out.write("\" value=\"");
+                if (mfb.isText(i)) {
+                    writeEscaped(mfb.getString(i));
+                } else {
+                    out.write(Long.toString(mfb.getLong(i)));
+                }
+                out.write("\"/>\n");
+            }
+            out.flush();
+        } catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+        logger.log(Level.FINE, "Sent {0} metrics to {1}:{2}",
+            new Object[] {mfb.size(), host, port});
+    }
+
+    public synchronized void close() {
+        disconnect();
+    }
+
+    private void connect() throws IOException {
+        final Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(host, port), timeoutMillis);
+            s.setSoTimeout(timeoutMillis);
+            s.setTcpNoDelay(true);
+            out = new BufferedWriter(
+                new OutputStreamWriter(s.getOutputStream(), UTF8), 8192);
+            socket = s;
+        } catch (IOException ex) {
+            s.close();
+            throw ex;
+        }
+        logger.log(Level.INFO, "Connected to the agent at {0}:{1}",
+            new Object[] {host, port});
+    }
+
+    private void disconnect() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Exception closing agent socket: {0}", ex);
+        }
+        socket = null;
+        out = null;
+    }
+
+    private void writeEscaped(final String s) throws IOException {
+        if (s == null) {
+            return;
+        }
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '&':
+                out.write("&amp;");
+                break;
+            case '<':
+                out.write("&lt;");
+                break;
+            case '>':
+                out.write("&gt;");
+                break;
+            case '"':
+                out.write("&quot;");
+                break;
+            case '\n':
+                out.write("&#10;");
+                break;
+            case '\r':
+                out.write("&#13;");
+                break;
+            default:
+                out.write(c);
+            }
+        }
+    }
+}
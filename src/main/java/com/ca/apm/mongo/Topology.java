@@ -23,21 +23,16 @@
 package com.ca.apm.mongo;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
-import java.util.logging.Level;
-
-import javax.net.ssl.SSLSocketFactory;
 
 import com.mongodb.CommandResult;
-import com.mongodb.DB;
-import com.mongodb.MongoCredential;
-import com.mongodb.MongoClient;
-import com.mongodb.MongoClientOptions;
-import com.mongodb.ServerAddress;
 
 
 public abstract class Topology {
@@ -62,23 +57,29 @@ public abstract class Topology {
     protected Logger logger;
 
     private Properties props;
-    private List<MongoCredential> mongoCreds = new ArrayList<MongoCredential>();
+    private MongoClientRegistry clients;
+    private volatile CommandCache commandCache;
     protected String dbHost;
     protected int dbPort;
 
     protected ClusterType type;
+    protected String nodeType;
 
     protected Set<String> members = new HashSet<String>();
+    // replica set name -> members, for every set seen during discovery
+    private final Map<String, List<String>> replicaSets =
+        new ConcurrentHashMap<String, List<String>>();
 
     protected Topology(
         final Properties props,
         final String host,
         final int port,
         final Logger l,
+        final MongoClientRegistry c,
         final ClusterType t
     ) {
         this.props = props;
-        Collector.setupCreds(mongoCreds, props);
+        this.clients = c;
         setConnProps(host, port);
         setLogger(l);
         type = t;
@@ -93,12 +94,32 @@ public abstract class Topology {
         this.logger = logger;
     }
 
+    /**
+     * Sets the cache to run commands through during discovery, or null to
+     * run them directly.
+     */
+    public void setCommandCache(final CommandCache cache) {
+        this.commandCache = cache;
+    }
+
+    protected Properties getProps() {
+        return props;
+    }
+
     abstract void discoverServers(final String nodeType) throws Exception;
 
     public List<String> getDiscoveredServers() {
         return new ArrayList<String>(members);
     }
 
+    /**
+     * Returns the members of each replica set found during discovery,
+     * keyed by set name.
+     */
+    public Map<String, List<String>> getReplicaSets() {
+        return new HashMap<String, List<String>>(replicaSets);
+    }
+
     protected List<String> discoverReplicas(final String host, final int port)
         throws Exception {
 
@@ -123,6 +144,10 @@ public abstract class Topology {
         if (cr.containsField("arbiters")) {
             replicas.addAll((List<String>) cr.get("arbiters"));
         }
+        final String setName = cr.getString("setName");
+        if (setName != null) {
+            replicaSets.put(setName, new ArrayList<String>(replicas));
+        }
         return replicas;
     }
 
@@ -140,56 +165,23 @@ public abstract class Topology {
         final String database,
         final String cmd
     ) throws Exception {
-        MongoClient dbClient = null;
-        try {
-            dbClient = setupDbClient(host, port);
-            DB db = dbClient.getDB(database);
-            return db.command(cmd);
-        } finally {
-            if (dbClient != null) {
-                dbClient.close();
-            }
+        final CommandCache cache = commandCache;
+        if (cache != null) {
+            return cache.runDBCmd(host, port, database, cmd);
         }
+        return clients.runDBCmd(host, port, database, cmd);
     }
 
-    protected MongoClient setupDbClient(final String dbHost, final int dbPort) {
-        final boolean useSSL =
-            Collector.getBooleanProp(Collector.USE_SSL_PROP, props);
-        final String clientTrustStore =
-            Collector.getOptionalStringProp(
-                Collector.SSL_CLIENT_TRUST_STORE_FILE_PROP, props);
-        final String clientPasswd =
-            Collector.getOptionalStringProp(
-                Collector.SSL_CLIENT_TRUST_STORE_PASSWD_PROP, props);
-
-        try {
-            MongoClientOptions.Builder builder =
-                new MongoClientOptions.Builder();
-
-            if (useSSL) {
-                System.setProperty(
-                    Collector.SSL_CLIENT_TRUST_STORE_FILE_PROP,
-                    clientTrustStore);
-                System.setProperty(
-                    Collector.SSL_CLIENT_TRUST_STORE_PASSWD_PROP,
-                    clientPasswd);
-                builder = builder.socketFactory(SSLSocketFactory.getDefault());
-            }
-
-            final MongoClientOptions options = builder.build();
-            MongoClient dbClient = new MongoClient(
-                new ServerAddress(dbHost, dbPort),
-                mongoCreds,
-                options);
-            logger.log(Level.FINE, "Connected to mongo at {0}",
-                dbClient.getConnectPoint());
-            logger.log(Level.FINE, "Client options: "
-                + dbClient.getMongoClientOptions());
-            return dbClient;
-        } catch (Exception ex) {
-            throw new RuntimeException(
-                "Can't initialize mongo client", ex);
-        }
+    /**
+     * Runs a task with the shared, long-lived client for a member, which
+     * stays open until the task returns.  Tasks must not close it.
+     */
+    protected <T> T withDbClient(
+        final String dbHost,
+        final int dbPort,
+        final MongoClientRegistry.ClientTask<T> task
+    ) throws Exception {
+        return clients.withClient(dbHost, dbPort, task);
     }
 
     @Override
@@ -0,0 +1,153 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Saves a discovered topology to a properties file and loads it back, so
+ * a restarted collector can start collecting from the last known members
+ * right away while it rediscovers the topology in the background.
+ */
+public final class TopologySnapshot {
+
+    private static final String SEED = "seed";
+    private static final String CLUSTER_TYPE = "cluster.type";
+    private static final String NODE_TYPE = "node.type";
+    private static final String MEMBERS = "members";
+    private static final String SAVED = "saved";
+
+    private TopologySnapshot() {
+    }
+
+    /**
+     * Writes the topology discovered from host:port to file, replacing any
+     * previous snapshot.
+     */
+    public static void save(
+        final Topology topology,
+        final String host,
+        final int port,
+        final File file
+    ) throws IOException {
+        final Properties p = new Properties();
+        p.setProperty(SEED, MongoClientRegistry.key(host, port));
+        p.setProperty(CLUSTER_TYPE, topology.type.name());
+        if (topology.nodeType != null) {
+            p.setProperty(NODE_TYPE, topology.nodeType);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (String member : topology.getDiscoveredServers()) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(member);
+        }
+        p.setProperty(MEMBERS, sb.toString());
+        p.setProperty(SAVED, String.valueOf(System.currentTimeMillis()));
+
+        // write a new file and move it into place so a crash never leaves
+        // a truncated snapshot behind
+        final File tmp = new File(file.getPath() + ".tmp");
+        final OutputStream os = new FileOutputStream(tmp);
+        try {
+            p.store(os, "MongoDB collector topology snapshot");
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(file)) {
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Can't replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot, returning null if there is none, or if it was
+     * taken from a different seed than host:port.
+     */
+    public static Topology load(
+        final File file,
+        final Properties props,
+        final String host,
+        final int port,
+        final Logger logger,
+        final MongoClientRegistry clients
+    ) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        final Properties p = new Properties();
+        final InputStream is = new FileInputStream(file);
+        try {
+            p.load(is);
+        } finally {
+            is.close();
+        }
+        if (!MongoClientRegistry.key(host, port).equals(p.getProperty(SEED))) {
+            return null;
+        }
+        final List<String> members = new ArrayList<String>();
+        for (String m : p.getProperty(MEMBERS, "").split(",")) {
+            if (m.trim().length() > 0) {
+                members.add(m.trim());
+            }
+        }
+        if (members.isEmpty()) {
+            return null;
+        }
+
+        final Topology.ClusterType type;
+        try {
+            type = Topology.ClusterType.valueOf(p.getProperty(CLUSTER_TYPE));
+        } catch (Exception ex) {
+            throw new IOException(String.format(
+                "Invalid %s in %s", CLUSTER_TYPE, file));
+        }
+        final Topology t;
+        switch (type) {
+        case SHARDED_CLUSTER:
+            t = new ShardCluster(props, host, port, logger, clients);
+            break;
+        case REPLICA_SET:
+            t = new ReplicaSet(props, host, port, logger, clients);
+            break;
+        default:
+            t = new StandaloneMongod(props, host, port, logger, clients);
+            break;
+        }
+        t.nodeType = p.getProperty(NODE_TYPE);
+        t.members.addAll(members);
+        return t;
+    }
+}
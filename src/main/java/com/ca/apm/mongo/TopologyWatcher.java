@@ -0,0 +1,235 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mongodb.MongoClient;
+import com.mongodb.ReplicaSetStatus;
+import com.mongodb.ServerAddress;
+
+/**
+ * Watches the replica sets of a topology through the driver's own
+ * replica set monitoring, instead of rediscovering the whole topology to
+ * notice an election or a member joining or leaving.
+ *
+ * One client per set is kept open; the driver checks each member once per
+ * heartbeat.  {@link #poll()} only reads the driver's current view of each
+ * set, so it can run as often as the heartbeat.  When the primary or the
+ * membership of a set changes, the listener is called, and a change keeps
+ * being reported until the listener has handled it.
+ */
+public class TopologyWatcher {
+
+    /** Told about changes to the watched replica sets. */
+    public interface Listener {
+        /**
+         * Called when the primary or the membership of a set changed.
+         *
+         * @return false if the change could not be handled (e.g. the
+         *         rediscovery failed) and should be reported again
+         */
+        boolean topologyChanged();
+    }
+
+    private final MongoClientRegistry clients;
+    private final int heartbeatMillis;
+    private final Listener listener;
+    private final Logger logger;
+
+    private final Map<String, SetMonitor> sets =
+        new HashMap<String, SetMonitor>();
+
+    public TopologyWatcher(
+        final MongoClientRegistry clients,
+        final int heartbeatMillis,
+        final Listener listener,
+        final Logger l
+    ) {
+        this.clients = clients;
+        this.heartbeatMillis = heartbeatMillis;
+        this.listener = listener;
+        this.logger = l;
+    }
+
+    /**
+     * Starts watching the replica sets of a topology and stops watching
+     * those no longer in it.  A set already being watched keeps its
+     * client, since the driver follows its membership by itself.
+     */
+    public synchronized void watch(final Topology t) {
+        final Map<String, List<String>> want = t.getReplicaSets();
+        for (String name : new ArrayList<String>(sets.keySet())) {
+            if (!want.containsKey(name)) {
+                logger.log(Level.INFO, "No longer watching replica set {0}",
+                    name);
+                sets.remove(name).close();
+            }
+        }
+        for (Map.Entry<String, List<String>> e : want.entrySet()) {
+            if (sets.containsKey(e.getKey()) || e.getValue().isEmpty()) {
+                continue;
+            }
+            try {
+                sets.put(e.getKey(), new SetMonitor(e.getKey(),
+                    clients.newReplicaSetClient(e.getKey(), e.getValue(),
+                        heartbeatMillis)));
+                logger.log(Level.INFO, "Watching replica set {0}: {1}",
+                    new Object[] {e.getKey(), e.getValue()});
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Can't watch replica set "
+                    + e.getKey() + ": ", ex);
+            }
+        }
+    }
+
+    /**
+     * Checks every watched set and calls the listener once if any of them
+     * changed.  The change is only taken as seen once the listener has
+     * handled it; until then every poll reports it again.
+     *
+     * @return whether a change was seen
+     */
+    public boolean poll() {
+        final List<SetMonitor> changed = new ArrayList<SetMonitor>();
+        synchronized (this) {
+            for (SetMonitor m : sets.values()) {
+                if (m.check()) {
+                    changed.add(m);
+                }
+            }
+        }
+        if (changed.isEmpty()) {
+            return false;
+        }
+        if (listener.topologyChanged()) {
+            synchronized (this) {
+                for (SetMonitor m : changed) {
+                    m.commit();
+                }
+            }
+        } else {
+            logger.log(Level.WARNING, "Replica set change not handled, "
+                + "retrying after the next heartbeat");
+        }
+        return true;
+    }
+
+    /**
+     * Describes the driver's current view of a replica set as its primary
+     * and members, or returns null if the set has no primary or can't be
+     * checked.
+     */
+    protected String describe(final String setName, final MongoClient client) {
+        final ServerAddress primary;
+        final Set<String> seen = new TreeSet<String>();
+        try {
+            final ReplicaSetStatus rs = client.getReplicaSetStatus();
+            primary = rs == null ? null : rs.getMaster();
+            for (ServerAddress a : client.getServerAddressList()) {
+                seen.add(MongoClientRegistry.key(a.getHost(), a.getPort()));
+            }
+        } catch (Exception ex) {
+            logger.log(Level.FINE, "Can''t check replica set {0}: {1}",
+                new Object[] {setName, ex});
+            return null;
+        }
+        if (primary == null) {
+            // wait for the election to finish rather than rediscover a set
+            // without a primary
+            return null;
+        }
+        return "primary: " + MongoClientRegistry.key(primary.getHost(),
+            primary.getPort()) + ", members: " + seen;
+    }
+
+    public synchronized int size() {
+        return sets.size();
+    }
+
+    public synchronized void close() {
+        for (SetMonitor m : sets.values()) {
+            m.close();
+        }
+        sets.clear();
+    }
+
+    private class SetMonitor {
+        private final String name;
+        private final MongoClient client;
+        // the state last handled, null until first seen
+        private String last;
+        // a changed state not handled yet
+        private String pending;
+
+        SetMonitor(final String name, final MongoClient client) {
+            this.name = name;
+            this.client = client;
+        }
+
+        /**
+         * Returns whether the set differs from the state last handled.
+         */
+        boolean check() {
+            final String now = describe(name, client);
+            if (now == null || now.equals(last)) {
+                return false;
+            }
+            if (last == null) {
+                // the topology being watched already reflects this
+                last = now;
+                return false;
+            }
+            if (!now.equals(pending)) {
+                logger.log(Level.INFO, "Replica set {0} changed, {1}",
+                    new Object[] {name, now});
+                pending = now;
+            }
+            return true;
+        }
+
+        void commit() {
+            if (pending != null) {
+                last = pending;
+                pending = null;
+            }
+        }
+
+        void close() {
+            try {
+                client.close();
+            } catch (Exception ex) {
+                logger.log(Level.FINE,
+                    "Exception closing replica set client: {0}", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * Copyright (c) 2014 CA. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the executors used to run per-server collection tasks and
+ * the collector's background work.
+ *
+ * The collector is built to run on JVMs older than Java 21, so virtual
+ * threads are looked up reflectively and only used when the running JVM
+ * provides them.
+ */
+public final class WorkerPools {
+
+    private static final Method NEW_VIRTUAL_EXECUTOR =
+        findVirtualExecutorFactory();
+
+    private WorkerPools() {
+    }
+
+    /**
+     * A pool of a fixed number of daemon platform threads.
+     */
+    public static ExecutorService newFixedPool(
+        final int threads,
+        final String name
+    ) {
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    /**
+     * An executor that starts a new virtual thread for every task, or, when
+     * the JVM has no virtual threads, a pool of fallbackThreads daemon
+     * platform threads.
+     */
+    public static ExecutorService newVirtualPool(
+        final String name,
+        final int fallbackThreads
+    ) {
+        if (NEW_VIRTUAL_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+            } catch (Exception ex) {
+                // fall through to platform threads
+            }
+        }
+        return newFixedPool(fallbackThreads, name);
+    }
+
+    /**
+     * A scheduler running its tasks one at a time on a daemon thread.
+     */
+    public static ScheduledExecutorService newScheduler(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(
+            daemonThreads(name));
+    }
+
+    public static boolean virtualThreadsSupported() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(final Runnable r) {
+                final Thread t =
+                    new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+}
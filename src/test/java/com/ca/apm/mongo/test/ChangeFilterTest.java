@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.ChangeFilter;
+import com.ca.apm.mongo.DeliveryQueue;
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricPathRegistry;
+
+public class ChangeFilterTest {
+
+    private static final String MEMBER = "h:1";
+
+    private final MetricPathRegistry reg = new MetricPathRegistry();
+
+    @Test
+    public void testRetain() {
+        MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        mfb.addMetric("LongCounter", "a:x", "1");
+        mfb.addMetric("StringEvent", "a:y", "two");
+        mfb.addMetric("LongCounter", "a:z", "3");
+        BitSet keep = new BitSet();
+        keep.set(1);
+        keep.set(2);
+        mfb.retain(keep);
+        Assert.assertEquals(mfb.size(), 2);
+        Assert.assertEquals(reg.getPath(mfb.getPathId(0)), "a:y");
+        Assert.assertEquals(mfb.getValue(0), "two");
+        Assert.assertEquals(mfb.getValue(1), "3");
+    }
+
+    @Test
+    public void testOnlyChangesBetweenRefreshes() {
+        ChangeFilter f = new ChangeFilter(3);
+
+        Assert.assertEquals(f.filter(MEMBER, sample(1, "3.0.4", 5)), 0);
+
+        // over the next three unchanged cycles exactly one is a refresh
+        int refreshes = 0;
+        for (int i = 0; i < 3; i++) {
+            MetricFeedBundle mfb = sample(1, "3.0.4", 5);
+            int dropped = f.filter(MEMBER, mfb);
+            if (dropped == 0) {
+                refreshes++;
+                Assert.assertEquals(mfb.size(), 3);
+            } else {
+                Assert.assertEquals(dropped, 2);
+                // the per-interval counter always goes out
+                Assert.assertEquals(mfb.size(), 1);
+                Assert.assertEquals(mfb.getTypeName(0), "PerIntervalCounter");
+            }
+        }
+        Assert.assertEquals(refreshes, 1);
+
+        // changed values are sent whatever the cycle
+        MetricFeedBundle mfb = sample(2, "3.0.5", 5);
+        f.filter(MEMBER, mfb);
+        Assert.assertEquals(mfb.size(), 3);
+        Assert.assertEquals(mfb.getValue(0), "2");
+        Assert.assertEquals(mfb.getValue(1), "3.0.5");
+
+        f.takeSuppressed();
+        Assert.assertEquals(f.takeSuppressed(), 0);
+    }
+
+    @Test
+    public void testDroppedBundleIsSentAgain() throws Exception {
+        // no refresh within the cycles below
+        final ChangeFilter f = new ChangeFilter(1000);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DeliveryQueue q = new DeliveryQueue(1,
+            DeliveryQueue.DropPolicy.OLDEST, new DeliveryQueue.Sender() {
+                public void send(final MetricFeedBundle mfb)
+                    throws Exception {
+                    started.countDown();
+                    release.await();
+                }
+
+                public void lost(
+                    final String member,
+                    final MetricFeedBundle mfb
+                ) {
+                    f.forget(member);
+                }
+            }, Logger.getLogger(ChangeFilterTest.class.getName()));
+        try {
+            MetricFeedBundle mfb = sample(1, "3.0.4", 5);
+            f.filter(MEMBER, mfb);
+            q.offer(MEMBER, mfb);
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // the change to 2 is queued behind the stuck send...
+            mfb = sample(2, "3.0.4", 5);
+            Assert.assertEquals(f.filter(MEMBER, mfb), 1);
+            q.offer(MEMBER, mfb);
+            // ...and dropped to make room for the next cycle
+            mfb = sample(2, "3.0.4", 5);
+            Assert.assertEquals(f.filter(MEMBER, mfb), 2);
+            q.offer(MEMBER, mfb);
+            Assert.assertEquals(q.takeDropped(), 1);
+
+            // so the next cycle sends it again
+            mfb = sample(2, "3.0.4", 5);
+            Assert.assertEquals(f.filter(MEMBER, mfb), 0);
+            Assert.assertEquals(mfb.getValue(0), "2");
+        } finally {
+            release.countDown();
+            q.close(5000);
+        }
+    }
+
+    @Test
+    public void testForget() {
+        ChangeFilter f = new ChangeFilter(1000);
+        f.filter(MEMBER, sample(1, "3.0.4", 5));
+        Assert.assertEquals(f.filter(MEMBER, sample(1, "3.0.4", 5)), 2);
+        f.forgetAll();
+        Assert.assertEquals(f.filter(MEMBER, sample(1, "3.0.4", 5)), 0);
+    }
+
+    private MetricFeedBundle sample(
+        final long inserts,
+        final String version,
+        final long delta
+    ) {
+        MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        mfb.addMetric("LongCounter", "MongoDB@h;1|opcounters:insert",
+            String.valueOf(inserts));
+        mfb.addMetric("StringEvent", "MongoDB@h;1:version", version);
+        mfb.addMetric("PerIntervalCounter",
+            "MongoDB@h;1|opcounters:insert (delta)", String.valueOf(delta));
+        return mfb;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCredential;
+
+import com.ca.apm.mongo.MongoClientRegistry;
+
+public class ClientRegistryTest {
+
+    private MongoClientRegistry newRegistry(final long idleMillis) {
+        return new MongoClientRegistry(new Properties(),
+            new ArrayList<MongoCredential>(), idleMillis,
+            Logger.getLogger(ClientRegistryTest.class.getName()));
+    }
+
+    private static MongoClient client(
+        final MongoClientRegistry reg,
+        final int port
+    ) throws Exception {
+        return reg.withClient("localhost", port,
+            new MongoClientRegistry.ClientTask<MongoClient>() {
+                public MongoClient run(final MongoClient c) {
+                    return c;
+                }
+            });
+    }
+
+    @Test
+    public void testClientIsReused() throws Exception {
+        final MongoClientRegistry reg = newRegistry(60000);
+        try {
+            final MongoClient c1 = client(reg, 27017);
+            final MongoClient c2 = client(reg, 27017);
+            Assert.assertSame(c1, c2);
+            client(reg, 27018);
+            Assert.assertEquals(reg.size(), 2);
+        } finally {
+            reg.close();
+        }
+    }
+
+    @Test
+    public void testRetainAndEviction() throws Exception {
+        final MongoClientRegistry reg = newRegistry(0);
+        try {
+            final MongoClient c1 = client(reg, 27017);
+            client(reg, 27018);
+            reg.retain(Arrays.asList("localhost:27017"));
+            Assert.assertEquals(reg.size(), 1);
+            Assert.assertSame(client(reg, 27017), c1);
+
+            Thread.sleep(5);
+            reg.evictIdle();
+            Assert.assertEquals(reg.size(), 0);
+            Assert.assertNotSame(client(reg, 27017), c1);
+        } finally {
+            reg.close();
+        }
+    }
+
+    @Test
+    public void testClientStaysOpenWhileInUse() throws Exception {
+        final MongoClientRegistry reg = newRegistry(0);
+        final AtomicBoolean openAfterDrop = new AtomicBoolean();
+        try {
+            final MongoClient c = reg.withClient("localhost", 27017,
+                new MongoClientRegistry.ClientTask<MongoClient>() {
+                    public MongoClient run(final MongoClient client) {
+                        // dropped and evicted while a caller is using it
+                        reg.retain(new ArrayList<String>());
+                        reg.evictIdle();
+                        openAfterDrop.set(client.getConnector().isOpen());
+                        return client;
+                    }
+                });
+            Assert.assertTrue(openAfterDrop.get());
+            Assert.assertEquals(reg.size(), 0);
+            // and closed once the caller is done with it
+            Assert.assertFalse(c.getConnector().isOpen());
+        } finally {
+            reg.close();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+
+import org.testng.annotations.Test;
+
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.WorkerPools;
+
+/**
+ * Compares cycle latency, peak thread count and resident memory of the
+ * collection engines for a large simulated fleet.  Each simulated server
+ * blocks for a fixed "network" latency and then flattens and serializes a
+ * bundle of metrics, like Collector.collectMember does.
+ *
+ * Only runs when the RUN_BENCHMARKS system property is set, e.g.
+ *   mvn test -Dtest=CollectionEngineBenchmark -DRUN_BENCHMARKS=true
+ */
+public class CollectionEngineBenchmark {
+
+    private static final String RUN_BENCHMARKS = "RUN_BENCHMARKS";
+
+    private static final int SERVERS = Integer.getInteger("servers", 400);
+    private static final int LATENCY_MS = Integer.getInteger("latency", 20);
+    private static final int METRICS = Integer.getInteger("metrics", 1000);
+    private static final int CYCLES = 3;
+
+    @Test
+    public void benchmarkEngines() throws Exception {
+        if (!TestUtil.configuredToRun(RUN_BENCHMARKS)) {
+            System.err.printf(
+                "%s not specified; skipping engine benchmark%n",
+                RUN_BENCHMARKS);
+            return;
+        }
+        System.out.printf("%d servers, %d ms latency, %d metrics each, "
+            + "virtual threads %savailable%n", SERVERS, LATENCY_MS, METRICS,
+            WorkerPools.virtualThreadsSupported() ? "" : "not ");
+
+        report("single thread (current)",
+            new ScheduledThreadPoolExecutor(1), null, true);
+        report("fixed pool (32)",
+            WorkerPools.newFixedPool(32, "bench"), null, false);
+        report("virtual (limit 256)",
+            WorkerPools.newVirtualPool("bench", 256), new Semaphore(256),
+            false);
+    }
+
+    private void report(
+        final String name,
+        final ExecutorService es,
+        final Semaphore limit,
+        final boolean sequential
+    ) throws Exception {
+        System.gc();
+        final long rssBefore = rssKb();
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        long total = 0;
+        try {
+            for (int i = 0; i < CYCLES; i++) {
+                final long start = System.nanoTime();
+                if (sequential) {
+                    es.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            for (int s = 0; s < SERVERS; s++) {
+                                collectServer(s);
+                            }
+                            return null;
+                        }
+                    }).get();
+                } else {
+                    runFanOut(es, limit);
+                }
+                total += System.nanoTime() - start;
+            }
+        } finally {
+            es.shutdownNow();
+        }
+        System.out.printf("%-26s cycle %6d ms  peak threads %4d  "
+            + "RSS growth %7d kB%n", name, total / CYCLES / 1000000,
+            ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+            rssKb() - rssBefore);
+    }
+
+    private void runFanOut(
+        final ExecutorService es,
+        final Semaphore limit
+    ) throws Exception {
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int s = 0; s < SERVERS; s++) {
+            final int server = s;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    if (limit != null) {
+                        limit.acquire();
+                    }
+                    try {
+                        collectServer(server);
+                    } finally {
+                        if (limit != null) {
+                            limit.release();
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        for (Future<Void> f : es.invokeAll(tasks)) {
+            f.get();
+        }
+    }
+
+    private static int collectServer(final int server) throws Exception {
+        // fetch
+        Thread.sleep(LATENCY_MS);
+        // flatten
+        final MetricFeedBundle mfb = new MetricFeedBundle();
+        final String base = "MongoDB@host" + server + ";27017|section";
+        for (int m = 0; m < METRICS; m++) {
+            mfb.addMetric("LongCounter", base + ":metric" + m,
+                String.valueOf(m * 31L));
+        }
+        // serialize for delivery
+        return mfb.toString().length();
+    }
+
+    private static long rssKb() {
+        try {
+            final BufferedReader rdr =
+                new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(
+                            line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+        } catch (Exception ex) {
+            // not on Linux
+        }
+        return 0;
+    }
+}
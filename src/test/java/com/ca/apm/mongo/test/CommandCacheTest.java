@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.mongodb.CommandResult;
+import com.mongodb.MongoCredential;
+
+import com.ca.apm.mongo.CommandCache;
+import com.ca.apm.mongo.MongoClientRegistry;
+
+public class CommandCacheTest {
+
+    /** Counts the commands run; each waits until released. */
+    private static class FakeRegistry extends MongoClientRegistry {
+        private final AtomicInteger runs = new AtomicInteger();
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile Exception failure;
+
+        FakeRegistry() {
+            super(new Properties(), new ArrayList<MongoCredential>(), 60000,
+                Logger.getLogger(CommandCacheTest.class.getName()));
+        }
+
+        @Override
+        public CommandResult runDBCmd(
+            final String host,
+            final int port,
+            final String database,
+            final String cmd
+        ) throws Exception {
+            runs.incrementAndGet();
+            release.await();
+            if (failure != null) {
+                throw failure;
+            }
+            // CommandResult can't be built outside the driver
+            return null;
+        }
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneCommand() throws Exception {
+        final FakeRegistry reg = new FakeRegistry();
+        final CommandCache cache = new CommandCache(reg);
+        final int callers = 8;
+        final ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            final List<Future<CommandResult>> results =
+                new ArrayList<Future<CommandResult>>();
+            for (int i = 0; i < callers; i++) {
+                results.add(pool.submit(new Callable<CommandResult>() {
+                    public CommandResult call() throws Exception {
+                        return cache.runDBCmd("h", 1, "admin", "isMaster");
+                    }
+                }));
+            }
+            // let every caller find the command in flight before it ends
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (cache.getHits() < callers - 1
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            reg.release.countDown();
+            for (Future<CommandResult> f : results) {
+                Assert.assertNull(f.get(5, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(reg.runs.get(), 1);
+            Assert.assertEquals(cache.getMisses(), 1);
+            Assert.assertEquals(cache.getHits(), callers - 1);
+
+            // another command, database or member is a separate question
+            cache.runDBCmd("h", 1, "admin", "shardingState");
+            cache.runDBCmd("h", 1, "config", "isMaster");
+            cache.runDBCmd("h", 2, "admin", "isMaster");
+            Assert.assertEquals(reg.runs.get(), 4);
+            Assert.assertEquals(cache.getMisses(), 4);
+            Assert.assertEquals(cache.getHits(), callers - 1);
+        } finally {
+            pool.shutdownNow();
+            reg.close();
+        }
+    }
+
+    @Test
+    public void testFailureIsRethrown() throws Exception {
+        final FakeRegistry reg = new FakeRegistry();
+        final Exception down = new IOException("down");
+        reg.failure = down;
+        reg.release.countDown();
+        final CommandCache cache = new CommandCache(reg);
+        try {
+            for (int i = 0; i < 2; i++) {
+                try {
+                    cache.runDBCmd("h", 1, "admin", "isMaster");
+                    Assert.fail("expected the command's exception");
+                } catch (IOException ex) {
+                    Assert.assertSame(ex, down);
+                }
+            }
+            // not retried within the pass
+            Assert.assertEquals(reg.runs.get(), 1);
+            Assert.assertEquals(cache.getMisses(), 1);
+            Assert.assertEquals(cache.getHits(), 1);
+            Assert.assertEquals(cache.toString(),
+                "1 commands run, 1 answered from cache");
+        } finally {
+            reg.close();
+        }
+    }
+}
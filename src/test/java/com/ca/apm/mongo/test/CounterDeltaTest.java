@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.CounterDeltaTracker;
+import com.ca.apm.mongo.IntLongMap;
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricPathRegistry;
+
+public class CounterDeltaTest {
+
+    private static final String MEMBER = "h:1";
+
+    private final MetricPathRegistry reg = new MetricPathRegistry();
+    private final int base = reg.intern("MongoDB@h;1");
+
+    @Test
+    public void testIntLongMap() {
+        IntLongMap m = new IntLongMap(4);
+        for (int i = 0; i < 1000; i++) {
+            m.put(i * 7, i);
+        }
+        Assert.assertEquals(m.size(), 1000);
+        Assert.assertEquals(m.get(700, -1), 100);
+        Assert.assertEquals(m.get(701, -1), -1);
+        Assert.assertFalse(m.containsKey(3));
+        m.put(700, 5);
+        Assert.assertEquals(m.get(700, -1), 5);
+        Assert.assertEquals(m.size(), 1000);
+        m.clear();
+        Assert.assertEquals(m.size(), 0);
+        Assert.assertFalse(m.containsKey(700));
+    }
+
+    @Test
+    public void testDeltasAndRates() {
+        CounterDeltaTracker t = new CounterDeltaTracker(reg,
+            CounterDeltaTracker.DEFAULT_COUNTERS);
+
+        Map<String, String> out = sample(t, 100, 10000, 50, 7, 0);
+        Assert.assertFalse(out.containsKey("MongoDB@h;1|opcounters:insert (delta)"));
+
+        out = sample(t, 100, 20000, 80, 9, 10000);
+        Assert.assertEquals(out.get("MongoDB@h;1|opcounters:insert (delta)"),
+            "30");
+        Assert.assertEquals(
+            out.get("MongoDB@h;1|opcounters:insert (per second)"), "3");
+        // gauges are left alone
+        Assert.assertFalse(
+            out.containsKey("MongoDB@h;1|connections:current (delta)"));
+
+        // restart: new pid, so no delta this time...
+        out = sample(t, 200, 1000, 5, 9, 20000);
+        Assert.assertFalse(out.containsKey("MongoDB@h;1|opcounters:insert (delta)"));
+        // ...but the next sample has one again
+        out = sample(t, 200, 11000, 25, 9, 30000);
+        Assert.assertEquals(out.get("MongoDB@h;1|opcounters:insert (delta)"),
+            "20");
+    }
+
+    private Map<String, String> sample(
+        final CounterDeltaTracker t,
+        final long pid,
+        final long uptimeMillis,
+        final long inserts,
+        final long connections,
+        final long now
+    ) {
+        MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER, reg.metric(base, "pid"),
+            pid);
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER,
+            reg.metric(base, "uptimeMillis"), uptimeMillis);
+        mfb.addLong(MetricFeedBundle.INT_COUNTER,
+            reg.metric(reg.element(base, "opcounters"), "insert"), inserts);
+        mfb.addLong(MetricFeedBundle.INT_COUNTER,
+            reg.metric(reg.element(base, "connections"), "current"),
+            connections);
+        t.process(MEMBER, base, mfb, now);
+
+        Map<String, String> out = new HashMap<String, String>();
+        for (MetricFeedBundle.MetricInfo mi : mfb.getMetrics()) {
+            out.put(mi.getName(), mi.getValue());
+        }
+        return out;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.DeliveryQueue;
+import com.ca.apm.mongo.MetricFeedBundle;
+
+public class DeliveryQueueTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(DeliveryQueueTest.class.getName());
+
+    /** Records what was sent; blocks until released. */
+    private static class BlockingSender implements DeliveryQueue.Sender {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> sent =
+            Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> lost =
+            Collections.synchronizedList(new ArrayList<String>());
+
+        public void send(final MetricFeedBundle mfb) throws Exception {
+            started.countDown();
+            release.await();
+            sent.add(mfb.getValue(0));
+        }
+
+        public void lost(final String member, final MetricFeedBundle mfb) {
+            lost.add(member + "=" + mfb.getValue(0));
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final BlockingSender s = new BlockingSender();
+        final DeliveryQueue q = new DeliveryQueue(2,
+            DeliveryQueue.DropPolicy.OLDEST, s, LOG);
+        q.offer("a", bundle("1"));
+        Assert.assertTrue(s.started.await(5, TimeUnit.SECONDS));
+        // the sender holds "1"; the queue fills up behind it
+        q.offer("a", bundle("2"));
+        q.offer("b", bundle("3"));
+        q.offer("a", bundle("4"));
+        Assert.assertEquals(q.size(), 2);
+        Assert.assertEquals(q.takeDropped(), 1);
+        Assert.assertEquals(s.lost, Arrays.asList("a=2"));
+        s.release.countDown();
+        q.close(5000);
+        Assert.assertEquals(s.sent, Arrays.asList("1", "3", "4"));
+        Assert.assertFalse(q.offer("a", bundle("5")));
+    }
+
+    @Test
+    public void testLatestPerMember() throws Exception {
+        final BlockingSender s = new BlockingSender();
+        final DeliveryQueue q = new DeliveryQueue(10,
+            DeliveryQueue.DropPolicy.LATEST, s, LOG);
+        q.offer("a", bundle("1"));
+        Assert.assertTrue(s.started.await(5, TimeUnit.SECONDS));
+        q.offer("a", bundle("2"));
+        q.offer("b", bundle("3"));
+        q.offer("a", bundle("4"));
+        q.offer(null, bundle("5"));
+        q.offer(null, bundle("6"));
+        Assert.assertEquals(q.size(), 4);
+        Assert.assertEquals(q.takeDropped(), 1);
+        Assert.assertEquals(s.lost, Arrays.asList("a=2"));
+
+        final MetricFeedBundle self = new MetricFeedBundle();
+        q.addSelfMetrics(self, "Collector|Delivery Queue");
+        Assert.assertEquals(self.getValue(0), "4");
+
+        s.release.countDown();
+        q.close(5000);
+        Assert.assertEquals(s.sent,
+            Arrays.asList("1", "4", "3", "5", "6"));
+    }
+
+    private static MetricFeedBundle bundle(final String value) {
+        final MetricFeedBundle mfb = new MetricFeedBundle();
+        mfb.addMetric("LongCounter", "MongoDB@h;1:x", value);
+        return mfb;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.DeliverySpool;
+import com.ca.apm.mongo.MetricFeedBundle;
+
+public class DeliverySpoolTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(DeliverySpoolTest.class.getName());
+
+    private File dir;
+
+    /** Records each payload as a String; fails while down is set. */
+    private static class Recorder implements DeliverySpool.Sender {
+        private final List<String> sent = new ArrayList<String>();
+        private boolean down;
+
+        public void send(final byte[] b, final int off, final int len)
+            throws Exception {
+            if (down) {
+                throw new java.net.ConnectException("Connection refused");
+            }
+            sent.add(new String(b, off, len, "UTF-8"));
+        }
+    }
+
+    @BeforeMethod
+    public void makeDir() throws Exception {
+        dir = File.createTempFile("spool", "");
+        dir.delete();
+    }
+
+    @AfterMethod
+    public void removeDir() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testReplayInOrder() throws Exception {
+        final DeliverySpool spool = new DeliverySpool(dir, 1 << 20, LOG);
+        Assert.assertTrue(spool.isEmpty());
+        for (int i = 0; i < 3; i++) {
+            spool.append(bundle(i));
+        }
+        Assert.assertFalse(spool.isEmpty());
+
+        final Recorder r = new Recorder();
+        r.down = true;
+        Assert.assertEquals(spool.replay(10, r), 0);
+        r.down = false;
+        Assert.assertEquals(spool.replay(2, r), 2);
+        Assert.assertEquals(spool.replay(10, r), 1);
+        Assert.assertTrue(spool.isEmpty());
+        Assert.assertEquals(r.sent.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(r.sent.get(i),
+                "{\"metrics\":[{\"type\":\"LongCounter\","
+                + "\"name\":\"MongoDB@h;1:x\",\"value\":\"" + i + "\"}]}");
+        }
+        spool.close();
+    }
+
+    @Test
+    public void testSurvivesRestart() throws Exception {
+        DeliverySpool spool = new DeliverySpool(dir, 1 << 20, LOG);
+        for (int i = 0; i < 3; i++) {
+            spool.append(bundle(i));
+        }
+        final Recorder r = new Recorder();
+        Assert.assertEquals(spool.replay(1, r), 1);
+        spool.close();
+
+        spool = new DeliverySpool(dir, 1 << 20, LOG);
+        spool.append(bundle(3));
+        Assert.assertEquals(spool.replay(10, r), 3);
+        Assert.assertEquals(r.sent.size(), 4);
+        Assert.assertTrue(r.sent.get(1).contains("\"value\":\"1\""));
+        Assert.assertTrue(r.sent.get(3).contains("\"value\":\"3\""));
+        spool.close();
+    }
+
+    @Test
+    public void testDropsOldestWhenFull() throws Exception {
+        // two 1MB segments
+        final DeliverySpool spool = new DeliverySpool(dir, 2 << 20, LOG);
+        final byte[] payload = new byte[300 * 1024];
+        for (int i = 0; i < 7; i++) {
+            payload[0] = (byte) ('0' + i);
+            spool.append(payload, 0, payload.length);
+        }
+        // three payloads fit in a segment; the first segment went
+        final MetricFeedBundle self = new MetricFeedBundle();
+        spool.addSelfMetrics(self, "Collector|Spool");
+        Assert.assertEquals(self.getValue(2), "3");
+
+        final List<Byte> first = new ArrayList<Byte>();
+        Assert.assertEquals(spool.replay(10, new DeliverySpool.Sender() {
+            public void send(final byte[] b, final int off, final int len) {
+                first.add(b[off]);
+            }
+        }), 4);
+        Assert.assertEquals(first.get(0).byteValue(), (byte) '3');
+        Assert.assertEquals(first.get(3).byteValue(), (byte) '6');
+        spool.close();
+    }
+
+    @Test
+    public void testSizeCapIsHonoured() throws Exception {
+        final DeliverySpool spool = new DeliverySpool(dir, 1 << 20, LOG);
+        final byte[] payload = new byte[300 * 1024];
+        for (int i = 0; i < 7; i++) {
+            spool.append(payload, 0, payload.length);
+        }
+        long total = 0;
+        for (File f : dir.listFiles()) {
+            total += f.length();
+        }
+        Assert.assertTrue(total <= 1 << 20, "spool uses " + total);
+        spool.close();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTooSmall() throws Exception {
+        new DeliverySpool(dir, 1, LOG);
+    }
+
+    @Test
+    public void testAppendIfPending() throws Exception {
+        final DeliverySpool spool = new DeliverySpool(dir, 1 << 20, LOG);
+        Assert.assertFalse(spool.appendIfPending(bundle(1)));
+        Assert.assertTrue(spool.isEmpty());
+        spool.append(bundle(1));
+        // behind the one waiting, so it is replayed after it
+        Assert.assertTrue(spool.appendIfPending(bundle(2)));
+        final Recorder r = new Recorder();
+        Assert.assertEquals(spool.replay(10, r), 2);
+        Assert.assertTrue(r.sent.get(0).contains("\"1\""));
+        Assert.assertTrue(r.sent.get(1).contains("\"2\""));
+        Assert.assertFalse(spool.appendIfPending(bundle(3)));
+        spool.close();
+    }
+
+    @Test
+    public void testEmptiesWhenLiveOutpacesReplay() throws Exception {
+        final DeliverySpool spool = new DeliverySpool(dir, 1 << 20, LOG);
+        for (int i = 0; i < 5; i++) {
+            spool.append(bundle(i));
+        }
+        final Recorder r = new Recorder();
+        int live = 0;
+        // three live payloads a tick against a replay rate of one
+        for (int tick = 0; tick < 10; tick++) {
+            for (int j = 0; j < 3; j++) {
+                if (!spool.appendIfPending(bundle(100 + live))) {
+                    r.sent.add("live");
+                }
+                live++;
+            }
+            spool.replay(1, r);
+        }
+        Assert.assertTrue(spool.isEmpty());
+        Assert.assertEquals(r.sent.size(), 5 + live);
+        Assert.assertTrue(r.sent.get(4).contains("\"4\""));
+        spool.close();
+    }
+
+    private static MetricFeedBundle bundle(final int value) {
+        final MetricFeedBundle mfb = new MetricFeedBundle();
+        mfb.addMetric("LongCounter", "MongoDB@h;1:x", String.valueOf(value));
+        return mfb;
+    }
+}
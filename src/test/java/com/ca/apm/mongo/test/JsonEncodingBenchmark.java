@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.testng.annotations.Test;
+
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricFeedWriter;
+
+/**
+ * Compares the Gson serialization previously used for delivery
+ * (toString() followed by getBytes()) with the streaming MetricFeedWriter,
+ * reporting time and bytes allocated per bundle.
+ *
+ * Only runs when the RUN_BENCHMARKS system property is set, e.g.
+ *   mvn test -Dtest=JsonEncodingBenchmark -DRUN_BENCHMARKS=true
+ */
+public class JsonEncodingBenchmark {
+
+    private static final String RUN_BENCHMARKS = "RUN_BENCHMARKS";
+
+    private static final int METRICS = Integer.getInteger("metrics", 5000);
+    private static final int WARMUP = 200;
+    private static final int ITERATIONS = 1000;
+
+    private interface Encoder {
+        void encode(MetricFeedBundle mfb, OutputStream os) throws IOException;
+    }
+
+    @Test
+    public void benchmarkEncoders() throws Exception {
+        if (!TestUtil.configuredToRun(RUN_BENCHMARKS)) {
+            System.err.printf(
+                "%s not specified; skipping JSON encoding benchmark%n",
+                RUN_BENCHMARKS);
+            return;
+        }
+        final MetricFeedBundle mfb = new MetricFeedBundle();
+        for (int i = 0; i < METRICS; i++) {
+            mfb.addMetric(i % 10 == 0 ? "StringEvent" : "LongCounter",
+                "MongoDB@host;27017|wiredTiger|cache:bytes \"read\" " + i,
+                String.valueOf(i * 1000003L));
+        }
+        System.out.printf("%d metrics per bundle%n", METRICS);
+
+        report("gson", mfb, new Encoder() {
+            public void encode(
+                final MetricFeedBundle b,
+                final OutputStream os
+            ) throws IOException {
+                os.write(b.toString().getBytes());
+            }
+        });
+        report("streaming", mfb, new Encoder() {
+            public void encode(
+                final MetricFeedBundle b,
+                final OutputStream os
+            ) throws IOException {
+                new MetricFeedWriter(os).write(b);
+            }
+        });
+    }
+
+    private void report(
+        final String name,
+        final MetricFeedBundle mfb,
+        final Encoder enc
+    ) throws Exception {
+        final OutputStream sink = new OutputStream() {
+            public void write(final int b) {
+            }
+
+            public void write(final byte[] b, final int off, final int len) {
+            }
+        };
+        for (int i = 0; i < WARMUP; i++) {
+            enc.encode(mfb, sink);
+        }
+        final long alloc0 = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            enc.encode(mfb, sink);
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long alloc = allocatedBytes() - alloc0;
+        System.out.printf("%-10s %8.1f us/bundle  %10d bytes allocated/bundle%n",
+            name, elapsed / 1000.0 / ITERATIONS, alloc / ITERATIONS);
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean tmx = ManagementFactory.getThreadMXBean();
+        if (tmx instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) tmx)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
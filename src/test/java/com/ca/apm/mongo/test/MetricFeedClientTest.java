@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import net.jadler.Jadler;
+
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricFeedClient;
+
+public class MetricFeedClientTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(MetricFeedClientTest.class.getName());
+
+    private static final String FEED = "/apm/metricFeed";
+
+    private ConnectionCounter counter;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        Jadler.initJadler();
+        counter = new ConnectionCounter(Jadler.port());
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        counter.close();
+        Jadler.closeJadler();
+    }
+
+    @Test
+    public void testConnectionReused() throws Exception {
+        Jadler.onRequest()
+            .havingMethodEqualTo("POST")
+            .havingPathEqualTo(FEED)
+            .respond().withStatus(200).withBody("{\"status\":\"ok\"}");
+
+        final MetricFeedClient client = new MetricFeedClient(
+            url(), 5000, false, LOG);
+        final int cycles = 5;
+        for (int i = 0; i < cycles; i++) {
+            client.send(bundle(i));
+        }
+        final byte[] raw = "{\"metrics\":[]}".getBytes("UTF-8");
+        client.send(raw, 0, raw.length);
+
+        Jadler.verifyThatRequest()
+            .havingMethodEqualTo("POST")
+            .havingPathEqualTo(FEED)
+            .receivedTimes(cycles + 1);
+        // every request went over the first connection
+        Assert.assertEquals(counter.opened.get(), 1);
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        Jadler.onRequest()
+            .havingPathEqualTo(FEED)
+            .respond().withStatus(200);
+
+        new MetricFeedClient(url(), 5000, true, LOG).send(bundle(1));
+
+        Jadler.verifyThatRequest()
+            .havingPathEqualTo(FEED)
+            .havingHeaderEqualTo("Content-Encoding", "gzip")
+            .receivedOnce();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testServerErrorThrows() throws Exception {
+        Jadler.onRequest()
+            .havingPathEqualTo(FEED)
+            .respond().withStatus(503).withBody("restarting");
+
+        new MetricFeedClient(url(), 5000, false, LOG).send(bundle(1));
+    }
+
+    private URL url() throws Exception {
+        return new URL("http://localhost:" + counter.port() + FEED);
+    }
+
+    private static MetricFeedBundle bundle(final int value) {
+        final MetricFeedBundle mfb = new MetricFeedBundle();
+        mfb.addMetric("LongCounter", "MongoDB@h;1:x", String.valueOf(value));
+        return mfb;
+    }
+
+    /**
+     * A TCP proxy in front of Jadler that counts the connections opened
+     * through it.
+     */
+    private static class ConnectionCounter implements Runnable {
+        private final int target;
+        private final ServerSocket server;
+        private final AtomicInteger opened = new AtomicInteger();
+
+        ConnectionCounter(final int target) throws IOException {
+            this.target = target;
+            this.server = new ServerSocket(0);
+            final Thread t = new Thread(this, "connection-counter");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int port() {
+            return server.getLocalPort();
+        }
+
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket in = server.accept();
+                    opened.incrementAndGet();
+                    final Socket out = new Socket("localhost", target);
+                    pump(in, out);
+                    pump(out, in);
+                } catch (IOException ex) {
+                    // closed
+                }
+            }
+        }
+
+        void close() throws IOException {
+            server.close();
+        }
+
+        private static void pump(final Socket from, final Socket to) {
+            final Thread t = new Thread(new Runnable() {
+                public void run() {
+                    final byte[] buf = new byte[8192];
+                    try {
+                        final InputStream is = from.getInputStream();
+                        final OutputStream os = to.getOutputStream();
+                        int n;
+                        while ((n = is.read(buf)) >= 0) {
+                            os.write(buf, 0, n);
+                            os.flush();
+                        }
+                    } catch (IOException ex) {
+                        // connection closed
+                    } finally {
+                        try {
+                            to.shutdownOutput();
+                        } catch (IOException ex) {
+                            // already closed
+                        }
+                    }
+                }
+            }, "connection-counter-pump");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.MetricFilter;
+
+public class MetricFilterTest {
+
+    @Test
+    public void testExcludeOnly() {
+        MetricFilter f = new MetricFilter(null,
+            "wiredTiger, metrics|commands|*, **|*Histogram*");
+        Assert.assertTrue(f.accepts("uptime"));
+        Assert.assertTrue(f.accepts("opcounters:insert"));
+        Assert.assertFalse(f.accepts("wiredTiger|cache:bytes read into cache"));
+        Assert.assertTrue(f.accepts("metrics|document:inserted"));
+        Assert.assertFalse(f.accepts("metrics|commands|find:total"));
+        Assert.assertFalse(f.accepts("opLatencies|reads|latencyHistogram|0:count"));
+
+        // whole subtrees are pruned at their root
+        MetricFilter.State s = f.root().next("wiredTiger");
+        Assert.assertTrue(s.isPruned());
+        Assert.assertFalse(f.root().next("metrics").isPruned());
+        Assert.assertTrue(
+            f.root().next("metrics").next("commands").next("x").isPruned());
+        // transitions are cached
+        Assert.assertSame(f.root().next("metrics"), f.root().next("metrics"));
+    }
+
+    @Test
+    public void testIncludeAndExclude() {
+        MetricFilter f = new MetricFilter(
+            "opcounters, wiredTiger|cache, mem:res*", "opcounters:getmore");
+        Assert.assertTrue(f.accepts("opcounters:insert"));
+        Assert.assertFalse(f.accepts("opcounters:getmore"));
+        Assert.assertTrue(f.accepts("wiredTiger|cache:bytes read into cache"));
+        Assert.assertFalse(f.accepts("wiredTiger|log:bytes written"));
+        Assert.assertTrue(f.accepts("mem:resident"));
+        Assert.assertFalse(f.accepts("mem:virtual"));
+        Assert.assertFalse(f.accepts("uptime"));
+        Assert.assertTrue(f.root().next("network").isPruned());
+        // still on the way to an include
+        MetricFilter.State wt = f.root().next("wiredTiger");
+        Assert.assertFalse(wt.isPruned());
+        Assert.assertFalse(wt.isIncluded());
+    }
+
+    @Test
+    public void testAnyKeys() {
+        MetricFilter f = new MetricFilter("**|latency*", null);
+        Assert.assertTrue(f.accepts("latency"));
+        Assert.assertTrue(f.accepts("opLatencies|reads:latency"));
+        Assert.assertTrue(f.accepts("a|b|c|latencyMicros:x"));
+        Assert.assertFalse(f.accepts("a|b|c:ops"));
+    }
+}
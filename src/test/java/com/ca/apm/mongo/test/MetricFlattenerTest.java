@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricFilter;
+import com.ca.apm.mongo.MetricFlattener;
+import com.ca.apm.mongo.MetricPathRegistry;
+import com.ca.apm.mongo.RawBsonDecoder;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+
+public class MetricFlattenerTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(MetricFlattenerTest.class.getName());
+
+    private final MetricPathRegistry reg = new MetricPathRegistry();
+    private final int base = reg.intern("MongoDB@h;1");
+
+    @Test
+    public void testRawMatchesDecoded() throws Exception {
+        checkSame(new MetricFlattener(reg, null, LOG));
+    }
+
+    @Test
+    public void testRawMatchesDecodedFiltered() throws Exception {
+        checkSame(new MetricFlattener(reg,
+            new MetricFilter(null, "wiredTiger|cache|*, repl|hosts|1"), LOG));
+        checkSame(new MetricFlattener(reg,
+            new MetricFilter("wiredTiger, mem:bits", null), LOG));
+    }
+
+    @Test
+    public void testSchemaPlan() throws Exception {
+        final Logger planLog = Logger.getAnonymousLogger();
+        final AtomicInteger builds = new AtomicInteger();
+        planLog.setLevel(Level.FINE);
+        planLog.addHandler(new Handler() {
+            public void publish(final LogRecord r) {
+                if (r.getMessage().startsWith("New serverStatus layout")) {
+                    builds.incrementAndGet();
+                }
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        });
+        MetricFlattener f = new MetricFlattener(reg,
+            new MetricFilter(null, "repl|hosts"), planLog);
+        MetricFlattener noPlan = new MetricFlattener(reg,
+            new MetricFilter(null, "repl|hosts"), LOG);
+
+        BasicDBObject status = serverStatus();
+        // first reply builds the plan, the next ones follow it
+        for (int i = 0; i < 3; i++) {
+            ((BasicDBObject) status.get("mem")).put("resident", 43 + i);
+            status.put("uptime", 12.5 + i);
+            checkPlanned(f, noPlan, status);
+        }
+        Assert.assertEquals(builds.get(), 1);
+
+        // a new section, a counter that outgrew int32 and a removed field
+        status.put("tcmalloc", new BasicDBObject("pageheap", 3));
+        checkPlanned(f, noPlan, status);
+        ((BasicDBObject) status.get("mem")).put("bits", 1L << 40);
+        checkPlanned(f, noPlan, status);
+        status.removeField("version");
+        checkPlanned(f, noPlan, status);
+        checkPlanned(f, noPlan, status);
+        Assert.assertEquals(builds.get(), 4);
+    }
+
+    @Test
+    public void testFailedReply() throws Exception {
+        BasicDBObject reply = new BasicDBObject("ok", 0.0)
+            .append("errmsg", "not authorized on admin")
+            .append("code", 13);
+        MetricFlattener f = new MetricFlattener(reg, null, LOG);
+        Assert.assertFalse(f.flattenRaw(new BasicBSONEncoder().encode(reply),
+            0, base, new MetricFeedBundle(reg)));
+    }
+
+    private void checkPlanned(
+        final MetricFlattener f,
+        final MetricFlattener noPlan,
+        final BasicDBObject status
+    ) {
+        byte[] bson = new BasicBSONEncoder().encode(status);
+        MetricFeedBundle planned = new MetricFeedBundle(reg);
+        planned.addMetric("IntCounter", "already:there", "1");
+        Assert.assertTrue(f.flattenRaw("h:1", bson, 0, base, planned));
+        MetricFeedBundle walked = new MetricFeedBundle(reg);
+        walked.addMetric("IntCounter", "already:there", "1");
+        Assert.assertTrue(noPlan.flattenRaw(bson, 0, base, walked));
+        Assert.assertEquals(planned.toString(), walked.toString());
+    }
+
+    private void checkSame(final MetricFlattener f) throws Exception {
+        BasicDBObject status = serverStatus();
+        byte[] bson = new BasicBSONEncoder().encode(status);
+        RawBsonDecoder.Document doc = (RawBsonDecoder.Document)
+            new RawBsonDecoder().decode(new ByteArrayInputStream(bson),
+                (DBCollection) null);
+
+        MetricFeedBundle raw = new MetricFeedBundle(reg);
+        Assert.assertTrue(f.flattenRaw(doc.getBsonBytes(),
+            doc.getBsonOffset(), base, raw));
+
+        status.removeField("ok");
+        MetricFeedBundle decoded = new MetricFeedBundle(reg);
+        f.flatten(status, base, decoded);
+
+        Assert.assertTrue(decoded.size() > 0);
+        Assert.assertEquals(raw.toString(), decoded.toString());
+    }
+
+    private static BasicDBObject serverStatus() {
+        BasicDBList hosts = new BasicDBList();
+        hosts.add("a:27017");
+        hosts.add("b:27017");
+        hosts.add(new BasicDBObject("x", 1));
+        BasicDBList nested = new BasicDBList();
+        nested.add(hosts);
+        return new BasicDBObject("host", "h\u00e9:1")
+            .append("version", "3.0.4")
+            .append("uptime", 12.5)
+            .append("uptimeMillis", 12500L)
+            .append("localTime", new Date(1400000000000L))
+            .append("mem", new BasicDBObject("bits", 64)
+                .append("resident", 43)
+                .append("supported", true))
+            .append("repl", new BasicDBObject("hosts", hosts)
+                .append("nested", nested)
+                .append("electionId", new ObjectId()))
+            .append("wiredTiger", new BasicDBObject("cache",
+                new BasicDBObject("bytes read into cache", 5L)
+                    .append("tracked dirty bytes in the cache", 0.25))
+                .append("log", new BasicDBObject("log bytes written", 7)))
+            .append("ok", 1.0);
+    }
+}
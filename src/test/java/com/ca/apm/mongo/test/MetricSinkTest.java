@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.FileMetricSink;
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.TcpMetricSink;
+
+public class MetricSinkTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(MetricSinkTest.class.getName());
+
+    @Test
+    public void testTcpSink() throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        try {
+            final TcpMetricSink sink = new TcpMetricSink("localhost",
+                server.getLocalPort(), 5000, LOG);
+            final MetricFeedBundle mfb = new MetricFeedBundle();
+            mfb.addMetric("LongCounter", "MongoDB@h;1:uptime", "42");
+            mfb.addMetric("StringEvent", "MongoDB@h;1:version",
+                "3.0 <\"rc\" & more>");
+            sink.send(mfb);
+
+            final Socket s = server.accept();
+            final BufferedReader rdr = new BufferedReader(
+                new InputStreamReader(s.getInputStream(), "UTF-8"));
+            Assert.assertEquals(rdr.readLine(), "<metric type=\"LongCounter\" "
+                + "name=\"MongoDB@h;1:uptime\" value=\"42\"/>");
+            Assert.assertEquals(rdr.readLine(), "<metric type=\"StringEvent\" "
+                + "name=\"MongoDB@h;1:version\" "
+                + "value=\"3.0 &lt;&quot;rc&quot; &amp; more&gt;\"/>");
+            sink.close();
+            Assert.assertNull(rdr.readLine());
+            s.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testFileSinkRotates() throws Exception {
+        final File dir = File.createTempFile("sink", "");
+        dir.delete();
+        final File f = new File(dir, "metrics.ndjson");
+        try {
+            final FileMetricSink sink = new FileMetricSink(f, 100, 2, LOG);
+            for (int i = 0; i < 5; i++) {
+                final MetricFeedBundle mfb = new MetricFeedBundle();
+                mfb.addMetric("LongCounter", "MongoDB@h;1:x",
+                    String.valueOf(i));
+                sink.send(mfb);
+            }
+            sink.close();
+            // lines are about 70 bytes, so a file passes 100 at its second
+            Assert.assertEquals(lines(f).size(), 1);
+            Assert.assertEquals(lines(new File(f.getPath() + ".1")).size(), 2);
+            Assert.assertEquals(lines(new File(f.getPath() + ".2")).size(), 2);
+            Assert.assertFalse(new File(f.getPath() + ".3").exists());
+            Assert.assertEquals(lines(f).get(0),
+                "{\"metrics\":[{\"type\":\"LongCounter\","
+                + "\"name\":\"MongoDB@h;1:x\",\"value\":\"4\"}]}");
+        } finally {
+            for (File g : dir.listFiles()) {
+                g.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static List<String> lines(final File f) throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader rdr = new BufferedReader(new FileReader(f));
+        try {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            rdr.close();
+        }
+        return lines;
+    }
+}
@@ -22,16 +22,26 @@
 
 package com.ca.apm.mongo.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
 import java.io.StringReader;
+import java.util.List;
 
 import javax.json.Json;
+import javax.json.JsonObject;
 import javax.json.stream.JsonParser;
 
 import org.testng.annotations.Test;
 import org.testng.Assert;
 
+import com.ca.apm.mongo.Collector;
 import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricFeedWriter;
 import com.ca.apm.mongo.MetricPath;
+import com.ca.apm.mongo.MetricPathRegistry;
+
+import com.mongodb.BasicDBObject;
 
 public class MetricTest {
 
@@ -52,6 +62,249 @@ public class MetricTest {
             mp.toString());
     }
 
+    @Test
+    public void testPathRegistry() throws Exception {
+        MetricPathRegistry reg = new MetricPathRegistry();
+        int base = reg.intern("basePath");
+        int elem = reg.element(base, "no|pipes:or|colons");
+        int metric = reg.metric(reg.element(elem, "element2"), "mname");
+        Assert.assertEquals(reg.getPath(metric),
+            "basePath|no_pipes;or_colons|element2:mname");
+        Assert.assertEquals(reg.getPath(reg.suffixed(metric, " (rounded)")),
+            "basePath|no_pipes;or_colons|element2:mname (rounded)");
+
+        // the same lookups return the same id and String
+        Assert.assertEquals(reg.intern("basePath"), base);
+        int again = reg.metric(reg.element(
+            reg.element(base, "no|pipes:or|colons"), "element2"), "mname");
+        Assert.assertEquals(again, metric);
+        Assert.assertSame(reg.getPath(again), reg.getPath(metric));
+        Assert.assertEquals(reg.size(), 5);
+
+        // element and metric children of the same key are distinct paths
+        Assert.assertNotEquals(reg.element(base, "x"), reg.metric(base, "x"));
+
+        int quoted = reg.metric(base, "a\"b");
+        Assert.assertEquals(new String(reg.getJson(quoted), "UTF-8"),
+            "\"basePath:a\\\"b\"");
+        Assert.assertEquals(MetricPathRegistry.indexName(7), "7");
+        Assert.assertEquals(MetricPathRegistry.indexName(5000), "5000");
+    }
+
+    @Test
+    public void testPathRegistryRemove() throws Exception {
+        MetricPathRegistry reg = new MetricPathRegistry();
+        int base = reg.intern("MongoDB@h;1");
+        int metric = reg.metric(reg.element(base, "e"), "m");
+        int rounded = reg.suffixed(metric, " (rounded)");
+        int other = reg.metric(reg.intern("MongoDB@h;2"), "m");
+        MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER, rounded, 1);
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER, other, 2);
+        Assert.assertEquals(reg.size(), 6);
+
+        Assert.assertEquals(reg.remove("MongoDB@h;1"), 4);
+        Assert.assertEquals(reg.remove("MongoDB@h;1"), 0);
+        Assert.assertEquals(reg.size(), 2);
+        Assert.assertNull(reg.getPath(metric));
+        Assert.assertNull(reg.getJson(rounded));
+        Assert.assertEquals(reg.getPath(other), "MongoDB@h;2:m");
+        // children of a removed path are not added to bundles
+        Assert.assertEquals(reg.metric(base, "x"),
+            MetricPathRegistry.NO_PATH);
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER, reg.metric(base, "x"), 3);
+        Assert.assertEquals(mfb.size(), 2);
+
+        // metrics already in a bundle are left out when it is written
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new MetricFeedWriter(bos).write(mfb);
+        Assert.assertEquals(new String(bos.toByteArray(), "UTF-8"),
+            "{\"metrics\":[{\"type\":\"LongCounter\","
+            + "\"name\":\"MongoDB@h;2:m\",\"value\":\"2\"}]}");
+        Assert.assertEquals(mfb.getMetrics().size(), 1);
+
+        // a server that comes back gets fresh ids
+        int again = reg.intern("MongoDB@h;1");
+        Assert.assertNotEquals(again, base);
+        Assert.assertEquals(reg.getPath(reg.metric(again, "m")),
+            "MongoDB@h;1:m");
+    }
+
+    @Test
+    public void testMetricTypes() {
+        for (String t : new String[] {"IntCounter", "IntAverage", "IntRate",
+                "LongCounter", "LongAverage", "PerIntervalCounter",
+                "TimeStamp", "StringEvent"}) {
+            Assert.assertEquals(MetricFeedBundle.typeName(
+                MetricFeedBundle.typeCode(t)), t);
+        }
+        Assert.assertEquals(MetricFeedBundle.typeCode("PerIntervalCounter"),
+            MetricFeedBundle.PER_INTERVAL_COUNTER);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownMetricType() {
+        new MetricFeedBundle().addMetric("LongCountr", "a:b", "1");
+    }
+
+    @Test
+    public void testColumnarBundle() throws Exception {
+        MetricPathRegistry reg = new MetricPathRegistry();
+        int base = reg.intern("MongoDB@h;1");
+        MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        mfb.addLong(MetricFeedBundle.LONG_COUNTER, reg.metric(base, "a"), -42);
+        mfb.addLong(MetricFeedBundle.INT_COUNTER, reg.metric(base, "b"),
+            Long.MIN_VALUE);
+        mfb.addString(reg.metric(base, "c"), "text");
+        mfb.addMetric("PerIntervalCounter", "MongoDB@h;1:d", "7");
+        mfb.addMetric("LongCounter", "MongoDB@h;1:e", "not a number");
+
+        Assert.assertEquals(mfb.size(), 5);
+        Assert.assertFalse(mfb.isText(0));
+        Assert.assertTrue(mfb.isText(2));
+        Assert.assertEquals(mfb.getLong(3), 7);
+        List<MetricFeedBundle.MetricInfo> view = mfb.getMetrics();
+        Assert.assertEquals(view.get(0).getValue(), "-42");
+        Assert.assertEquals(view.get(1).getType(), "IntCounter");
+        Assert.assertEquals(view.get(3).getType(), "PerIntervalCounter");
+        Assert.assertEquals(view.get(3).getName(), "MongoDB@h;1:d");
+        Assert.assertEquals(view.get(4).getValue(), "not a number");
+
+        // merging from a different registry re-interns the names
+        MetricFeedBundle merged = new MetricFeedBundle();
+        merged.addString(merged.getPathRegistry().intern("first"), "x");
+        merged.addAll(mfb);
+        Assert.assertEquals(merged.size(), 6);
+        Assert.assertEquals(merged.getMetrics().get(5).getName(),
+            "MongoDB@h;1:e");
+        Assert.assertNull(merged.getString(1));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new MetricFeedWriter(bos).write(merged);
+        Assert.assertEquals(Json.createReader(new InputStreamReader(
+            new ByteArrayInputStream(bos.toByteArray()), "UTF-8")).readObject(),
+            Json.createReader(new StringReader(merged.toString())).readObject());
+        Assert.assertNull(new MetricFeedBundle().getMetrics());
+    }
+
+    @Test
+    public void testBundlePartition() {
+        MetricFeedBundle mfb = new MetricFeedBundle();
+        MetricFeedBundle other = new MetricFeedBundle();
+        for (int i = 0; i < 5; i++) {
+            mfb.addMetric("IntCounter", "a:m" + i, String.valueOf(i));
+            other.addMetric("IntCounter", "b:m" + i, String.valueOf(i));
+        }
+        mfb.addAll(other);
+        Assert.assertEquals(mfb.size(), 10);
+
+        List<MetricFeedBundle> parts = mfb.partition(4);
+        Assert.assertEquals(parts.size(), 3);
+        Assert.assertEquals(parts.get(0).size(), 4);
+        Assert.assertEquals(parts.get(2).size(), 2);
+        Assert.assertEquals(parts.get(1).getMetrics().get(0).getName(),
+            "a:m4");
+        Assert.assertEquals(mfb.partition(0).size(), 1);
+        Assert.assertEquals(new MetricFeedBundle().partition(4).size(), 0);
+    }
+
+    @Test
+    public void testBundlePartitionBySize() throws Exception {
+        MetricFeedBundle mfb = new MetricFeedBundle();
+        for (int i = 0; i < 50; i++) {
+            mfb.addMetric(i % 3 == 0 ? "StringEvent" : "LongCounter",
+                "MongoDB@h;1|caf\u00e9 \"" + i + "\":m",
+                i % 3 == 0 ? "line\n\u2028\ud83d\ude00 " + i
+                    : String.valueOf(-1000L * i));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new MetricFeedWriter(bos).write(mfb);
+        final int whole = bos.size();
+        Assert.assertEquals(mfb.partitionBySize(whole).size(), 1);
+
+        final int max = 1000;
+        List<MetricFeedBundle> parts = mfb.partitionBySize(max);
+        Assert.assertTrue(parts.size() > 1);
+        int metrics = 0;
+        for (int p = 0; p < parts.size(); p++) {
+            MetricFeedBundle part = parts.get(p);
+            bos.reset();
+            new MetricFeedWriter(bos).write(part);
+            Assert.assertTrue(bos.size() <= max);
+            if (p + 1 < parts.size()) {
+                // the next metric wouldn't have fit
+                Assert.assertTrue(bos.size() + 1 + MetricFeedWriter
+                    .metricSize(parts.get(p + 1), 0) > max);
+            }
+            Assert.assertEquals(part.getValue(0), mfb.getValue(metrics));
+            metrics += part.size();
+        }
+        Assert.assertEquals(metrics, mfb.size());
+        // a metric larger than the limit goes on its own
+        Assert.assertEquals(mfb.partitionBySize(10).size(), mfb.size());
+    }
+
+    @Test
+    public void testStreamingWriterMatchesGson() throws Exception {
+        MetricFeedBundle mfb = new MetricFeedBundle();
+        mfb.addMetric("StringEvent", "weird\\name",
+            "C:\\windows\\path\\foo.exe");
+        mfb.addMetric("StringEvent", "quote\"s",
+            "tab\tnew\nline\r\u0001\u001f end");
+        mfb.addMetric("StringEvent", "unicode",
+            "caf\u00e9 \u20ac \ud83d\ude00 \u2028 <&>");
+        for (int i = 0; i < 2000; i++) {
+            mfb.addMetric("LongCounter", "MongoDB@host;27017|x:m" + i,
+                String.valueOf(i * 1000003L));
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new MetricFeedWriter(bos, 64).write(mfb);
+        JsonObject streamed = Json.createReader(new InputStreamReader(
+            new ByteArrayInputStream(bos.toByteArray()), "UTF-8")).readObject();
+        JsonObject gson =
+            Json.createReader(new StringReader(mfb.toString())).readObject();
+        Assert.assertEquals(streamed, gson);
+
+        // names written from pre-encoded registry paths are the same
+        MetricPathRegistry reg = new MetricPathRegistry();
+        MetricFeedBundle byId = new MetricFeedBundle(reg);
+        for (MetricFeedBundle.MetricInfo mi : mfb.getMetrics()) {
+            byId.addMetric(mi.getType(), reg.intern(mi.getName()),
+                mi.getValue());
+        }
+        bos.reset();
+        new MetricFeedWriter(bos, 64).write(byId);
+        Assert.assertEquals(Json.createReader(new InputStreamReader(
+            new ByteArrayInputStream(bos.toByteArray()), "UTF-8")).readObject(),
+            gson);
+        Assert.assertEquals(
+            Json.createReader(new StringReader(byId.toString())).readObject(),
+            gson);
+    }
+
+    @Test
+    public void testServerStatusCommand() {
+        BasicDBObject cmd = Collector.serverStatusCommand(null, null, 0);
+        Assert.assertEquals(cmd, new BasicDBObject("serverStatus", 1));
+
+        cmd = Collector.serverStatusCommand("latchAnalysis",
+            " wiredTiger, tcmalloc ,", 5000);
+        Assert.assertEquals(cmd.keySet().iterator().next(), "serverStatus");
+        Assert.assertEquals(cmd.get("latchAnalysis"), 1);
+        Assert.assertEquals(cmd.get("wiredTiger"), 0);
+        Assert.assertEquals(cmd.get("tcmalloc"), 0);
+        Assert.assertEquals(cmd.get("maxTimeMS"), 5000);
+        Assert.assertEquals(cmd.size(), 5);
+
+        try {
+            Collector.serverStatusCommand(null, "metrics.commands", 0);
+            Assert.fail("nested section accepted");
+        } catch (IllegalArgumentException expected) {
+            // only top-level sections
+        }
+    }
+
     public void testJsonEscapes() {
         MetricFeedBundle mfb = new MetricFeedBundle();
         mfb.addMetric("StringEvent", "weird\\name",
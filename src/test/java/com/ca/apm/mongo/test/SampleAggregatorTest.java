@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.Collector;
+import com.ca.apm.mongo.MetricFeedBundle;
+import com.ca.apm.mongo.MetricFilter;
+import com.ca.apm.mongo.MetricPathRegistry;
+import com.ca.apm.mongo.SampleAggregator;
+
+public class SampleAggregatorTest {
+
+    private static final String MEMBER = "h:1";
+    private static final String QUEUE = "MongoDB@h;1|globalLock|currentQueue";
+
+    private final MetricPathRegistry reg = new MetricPathRegistry();
+
+    @Test
+    public void testAggregates() {
+        final SampleAggregator agg = new SampleAggregator(reg);
+        final long[] totals = {3, 40, 7, 0, 5};
+        for (long t : totals) {
+            agg.add(MEMBER, sample(t));
+        }
+        MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        Assert.assertEquals(agg.drain(MEMBER, mfb), 5);
+        Map<String, String> m = values(mfb);
+        Assert.assertEquals(m.get(QUEUE + ":total (min)"), "0");
+        Assert.assertEquals(m.get(QUEUE + ":total (max)"), "40");
+        Assert.assertEquals(m.get(QUEUE + ":total (avg)"), "11");
+        Assert.assertEquals(m.get(QUEUE + ":total (last)"), "5");
+        // text values aren't aggregated
+        Assert.assertFalse(m.containsKey(QUEUE + ":state (min)"));
+        Assert.assertEquals(mfb.size(), 4);
+
+        // the next interval starts afresh
+        mfb = new MetricFeedBundle(reg);
+        Assert.assertEquals(agg.drain(MEMBER, mfb), 0);
+        Assert.assertEquals(mfb.size(), 0);
+        agg.add(MEMBER, sample(9));
+        agg.drain(MEMBER, mfb);
+        Assert.assertEquals(values(mfb).get(QUEUE + ":total (min)"), "9");
+        Assert.assertEquals(values(mfb).get(QUEUE + ":total (max)"), "9");
+
+        agg.retain(Arrays.asList("other:2"));
+        agg.add("other:2", sample(1));
+        Assert.assertEquals(agg.drain(MEMBER, new MetricFeedBundle(reg)), 0);
+    }
+
+    @Test
+    public void testDefaultSamplePaths() {
+        final MetricFilter f = new MetricFilter(
+            Collector.DEFAULT_SAMPLE_PATHS, null);
+        Assert.assertTrue(f.accepts("globalLock|currentQueue|readers"));
+        Assert.assertTrue(f.accepts("connections|current"));
+        Assert.assertTrue(f.accepts(
+            "wiredTiger|cache|tracked dirty bytes in the cache"));
+        Assert.assertFalse(f.accepts("connections|available"));
+        Assert.assertFalse(f.accepts("opcounters|insert"));
+    }
+
+    private MetricFeedBundle sample(final long total) {
+        final MetricFeedBundle mfb = new MetricFeedBundle(reg);
+        mfb.addMetric("IntCounter", QUEUE + ":total", String.valueOf(total));
+        mfb.addMetric("StringEvent", QUEUE + ":state", "busy");
+        return mfb;
+    }
+
+    private Map<String, String> values(final MetricFeedBundle mfb) {
+        final Map<String, String> m = new HashMap<String, String>();
+        for (int i = 0; i < mfb.size(); i++) {
+            m.put(reg.getPath(mfb.getPathId(i)), mfb.getValue(i));
+        }
+        return m;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.SourceScheduler;
+
+import com.mongodb.BasicDBObject;
+
+public class SourceSchedulerTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(SourceSchedulerTest.class.getName());
+
+    private static final List<String> MEMBERS =
+        Arrays.asList("a:1", "b:1", "c:1", "d:1", "e:1");
+
+    @Test
+    public void testConcurrencyLimitAndIntervals() throws Exception {
+        final SourceScheduler.Source slow = source("dbStats", 200, 2);
+        final SourceScheduler.Source fast = source("top", 50, 0);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final ConcurrentMap<String, AtomicInteger> runs =
+            new ConcurrentHashMap<String, AtomicInteger>();
+        final CountDownLatch slowRound = new CountDownLatch(MEMBERS.size());
+
+        final SourceScheduler sched = new SourceScheduler(
+            Arrays.asList(slow, fast),
+            new SourceScheduler.Members() {
+                public List<String> get() {
+                    return MEMBERS;
+                }
+            },
+            new SourceScheduler.Runner() {
+                public void run(
+                    final SourceScheduler.Source s,
+                    final String member
+                ) throws Exception {
+                    runs.putIfAbsent(s.getName(), new AtomicInteger());
+                    runs.get(s.getName()).incrementAndGet();
+                    if (s == slow) {
+                        final int n = running.incrementAndGet();
+                        int m = maxRunning.get();
+                        while (n > m && !maxRunning.compareAndSet(m, n)) {
+                            m = maxRunning.get();
+                        }
+                        try {
+                            Thread.sleep(20);
+                        } finally {
+                            running.decrementAndGet();
+                        }
+                        slowRound.countDown();
+                    }
+                }
+            }, 8, 0, LOG);
+        sched.start();
+        try {
+            Assert.assertTrue(slowRound.await(5, TimeUnit.SECONDS));
+            Thread.sleep(300);
+        } finally {
+            sched.close();
+        }
+        // dbStats never ran on more than two members at once
+        Assert.assertTrue(maxRunning.get() <= 2, "" + maxRunning.get());
+        // and top, on a shorter interval, ran more rounds
+        Assert.assertTrue(runs.get("top").get() > runs.get("dbStats").get(),
+            runs.toString());
+    }
+
+    @Test
+    public void testOneSourcePerMemberAtATime() throws Exception {
+        final List<SourceScheduler.Source> all = Arrays.asList(
+            source("dbStats", 30, 0), source("top", 30, 0),
+            source("connPoolStats", 30, 0));
+        final ConcurrentMap<String, AtomicInteger> running =
+            new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(60);
+
+        final SourceScheduler sched = new SourceScheduler(all,
+            new SourceScheduler.Members() {
+                public List<String> get() {
+                    return MEMBERS.subList(0, 2);
+                }
+            },
+            new SourceScheduler.Runner() {
+                public void run(
+                    final SourceScheduler.Source s,
+                    final String member
+                ) throws Exception {
+                    running.putIfAbsent(member, new AtomicInteger());
+                    final int n = running.get(member).incrementAndGet();
+                    int m = maxRunning.get();
+                    while (n > m && !maxRunning.compareAndSet(m, n)) {
+                        m = maxRunning.get();
+                    }
+                    try {
+                        // interrupted when the scheduler is closed
+                        Thread.sleep(5);
+                    } finally {
+                        running.get(member).decrementAndGet();
+                    }
+                    ran.countDown();
+                }
+            }, 8, 1, LOG);
+        sched.start();
+        try {
+            Assert.assertTrue(ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            sched.close();
+        }
+        // the three sources never overlapped on a member
+        Assert.assertEquals(maxRunning.get(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testIntervalMustBePositive() {
+        source("top", 0, 0);
+    }
+
+    private static SourceScheduler.Source source(
+        final String name,
+        final long intervalMillis,
+        final int maxConcurrent
+    ) {
+        return new SourceScheduler.Source(name, "admin",
+            new BasicDBObject(name, 1), false, intervalMillis, 0,
+            maxConcurrent);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.ca.apm.mongo.ReplicaSet;
+import com.ca.apm.mongo.ShardCluster;
+import com.ca.apm.mongo.Topology;
+import com.ca.apm.mongo.TopologySnapshot;
+
+public class TopologySnapshotTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(TopologySnapshotTest.class.getName());
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File f = File.createTempFile("topology", ".properties");
+        File g = File.createTempFile("topology", ".properties");
+        try {
+            FileWriter w = new FileWriter(f);
+            w.write("seed=seed:27017\n"
+                + "cluster.type=SHARDED_CLUSTER\n"
+                + "node.type=shardRouter\n"
+                + "members=a\\:27017,b\\:27018, c:27019\n");
+            w.close();
+
+            Topology t = TopologySnapshot.load(f, new Properties(),
+                "seed", 27017, LOG, null);
+            Assert.assertTrue(t instanceof ShardCluster);
+            Assert.assertEquals(new HashSet<String>(t.getDiscoveredServers()),
+                new HashSet<String>(
+                    Arrays.asList("a:27017", "b:27018", "c:27019")));
+
+            TopologySnapshot.save(t, "seed", 27017, g);
+            Topology u = TopologySnapshot.load(g, new Properties(),
+                "seed", 27017, LOG, null);
+            Assert.assertTrue(u instanceof ShardCluster);
+            Assert.assertEquals(new HashSet<String>(u.getDiscoveredServers()),
+                new HashSet<String>(t.getDiscoveredServers()));
+
+            // a snapshot of some other cluster is ignored
+            Assert.assertNull(TopologySnapshot.load(g, new Properties(),
+                "other", 27017, LOG, null));
+        } finally {
+            f.delete();
+            g.delete();
+        }
+    }
+
+    @Test
+    public void testMissingOrEmpty() throws Exception {
+        File f = File.createTempFile("topology", ".properties");
+        try {
+            FileWriter w = new FileWriter(f);
+            w.write("seed=seed:27017\ncluster.type=REPLICA_SET\nmembers=\n");
+            w.close();
+            Assert.assertNull(TopologySnapshot.load(f, new Properties(),
+                "seed", 27017, LOG, null));
+
+            w = new FileWriter(f);
+            w.write("seed=seed:27017\ncluster.type=REPLICA_SET\nmembers=a:1\n");
+            w.close();
+            Assert.assertTrue(TopologySnapshot.load(f, new Properties(),
+                "seed", 27017, LOG, null) instanceof ReplicaSet);
+        } finally {
+            f.delete();
+        }
+        Assert.assertNull(TopologySnapshot.load(f, new Properties(),
+            "seed", 27017, LOG, null));
+    }
+}
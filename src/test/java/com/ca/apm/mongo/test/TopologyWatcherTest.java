@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014 CA.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+
+ * IN NO EVENT WILL CA BE LIABLE TO THE END USER OR ANY THIRD PARTY FOR ANY LOSS
+ * OR DAMAGE, DIRECT OR INDIRECT, FROM THE USE OF THIS MATERIAL,
+ * INCLUDING WITHOUT LIMITATION, LOST PROFITS, BUSINESS INTERRUPTION, GOODWILL,
+ * OR LOST DATA, EVEN IF CA IS EXPRESSLY ADVISED OF SUCH LOSS OR DAMAGE.
+ *
+ */
+
+package com.ca.apm.mongo.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.testng.annotations.Test;
+import org.testng.Assert;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCredential;
+import com.mongodb.ServerAddress;
+
+import com.ca.apm.mongo.CommandCache;
+import com.ca.apm.mongo.MongoClientRegistry;
+import com.ca.apm.mongo.ReplicaSet;
+import com.ca.apm.mongo.Topology;
+import com.ca.apm.mongo.TopologySnapshot;
+import com.ca.apm.mongo.TopologyWatcher;
+
+public class TopologyWatcherTest {
+
+    private static final Logger LOG =
+        Logger.getLogger(TopologyWatcherTest.class.getName());
+
+    /** Answers isMaster for a three member set without a mongod. */
+    private static class FakeRegistry extends MongoClientRegistry {
+        FakeRegistry() {
+            super(new Properties(), new ArrayList<MongoCredential>(), 60000,
+                LOG);
+        }
+
+        @Override
+        public CommandResult runDBCmd(
+            final String host,
+            final int port,
+            final String database,
+            final String cmd
+        ) throws Exception {
+            Assert.assertEquals(cmd, "isMaster");
+            // CommandResult's constructor is package-private
+            final Constructor<CommandResult> c = CommandResult.class
+                .getDeclaredConstructor(ServerAddress.class);
+            c.setAccessible(true);
+            final CommandResult cr = c.newInstance(
+                new ServerAddress(host, port));
+            cr.put("ismaster", true);
+            cr.put("setName", "rs0");
+            cr.put("hosts",
+                Arrays.asList("localhost:27017", "localhost:27018"));
+            cr.put("passives", Arrays.asList("localhost:27019"));
+            cr.put("arbiters", Arrays.asList("localhost:27020"));
+            return cr;
+        }
+    }
+
+    /** Reports a scripted state for every set. */
+    private static class FakeWatcher extends TopologyWatcher {
+        private volatile String state;
+
+        FakeWatcher(
+            final MongoClientRegistry clients,
+            final TopologyWatcher.Listener listener
+        ) {
+            super(clients, 1000, listener, LOG);
+        }
+
+        @Override
+        protected String describe(
+            final String setName,
+            final MongoClient client
+        ) {
+            return state;
+        }
+    }
+
+    private static class Listener implements TopologyWatcher.Listener {
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile boolean handled;
+
+        public boolean topologyChanged() {
+            calls.incrementAndGet();
+            return handled;
+        }
+    }
+
+    private Topology discover(final MongoClientRegistry reg) throws Exception {
+        final File f = File.createTempFile("topology", ".props");
+        try {
+            final Properties p = new Properties();
+            p.setProperty("seed", "localhost:27017");
+            p.setProperty("cluster.type", "REPLICA_SET");
+            p.setProperty("members", "localhost:27017");
+            final OutputStream os = new FileOutputStream(f);
+            try {
+                p.store(os, null);
+            } finally {
+                os.close();
+            }
+            final Topology t = TopologySnapshot.load(f, new Properties(),
+                "localhost", 27017, LOG, reg);
+            t.setCommandCache(new CommandCache(reg));
+            ((ReplicaSet) t).discoverServers("shardMember");
+            return t;
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testReplicaSetsFromDiscovery() throws Exception {
+        final FakeRegistry reg = new FakeRegistry();
+        try {
+            final Map<String, List<String>> sets =
+                discover(reg).getReplicaSets();
+            Assert.assertEquals(sets.size(), 1);
+            Assert.assertEquals(sets.get("rs0"), Arrays.asList(
+                "localhost:27017", "localhost:27018", "localhost:27019",
+                "localhost:27020"));
+        } finally {
+            reg.close();
+        }
+    }
+
+    @Test
+    public void testChangeIsReportedUntilHandled() throws Exception {
+        final FakeRegistry reg = new FakeRegistry();
+        final Listener l = new Listener();
+        final FakeWatcher w = new FakeWatcher(reg, l);
+        try {
+            w.watch(discover(reg));
+            Assert.assertEquals(w.size(), 1);
+
+            // the first state seen is the one the topology was built from
+            w.state = "primary: localhost:27017";
+            Assert.assertFalse(w.poll());
+            Assert.assertFalse(w.poll());
+
+            // an election whose rediscovery fails is reported again
+            w.state = "primary: localhost:27018";
+            Assert.assertTrue(w.poll());
+            Assert.assertTrue(w.poll());
+            Assert.assertEquals(l.calls.get(), 2);
+
+            // until it succeeds
+            l.handled = true;
+            Assert.assertTrue(w.poll());
+            Assert.assertFalse(w.poll());
+            Assert.assertEquals(l.calls.get(), 3);
+
+            // a set without a primary is left alone until it has one
+            w.state = null;
+            Assert.assertFalse(w.poll());
+            w.state = "primary: localhost:27017";
+            Assert.assertTrue(w.poll());
+            Assert.assertEquals(l.calls.get(), 4);
+        } finally {
+            w.close();
+            reg.close();
+        }
+    }
+}